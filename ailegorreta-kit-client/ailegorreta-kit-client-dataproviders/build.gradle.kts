@@ -29,6 +29,8 @@ extra["vok-framework-vokdbVersion"] = "0.15.0"
 
 dependencies {
     implementation("org.springframework.data:spring-data-commons")
+    implementation("io.micrometer:micrometer-core")
+    implementation("org.springframework.boot:spring-boot-starter-webflux")
 
     implementation(project(":ailegorreta-kit-commons:ailegorreta-kit-commons-utils"))
 
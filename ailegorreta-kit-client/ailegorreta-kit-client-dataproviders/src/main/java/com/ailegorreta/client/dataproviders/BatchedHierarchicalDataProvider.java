@@ -0,0 +1,300 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  BatchedHierarchicalDataProvider.java
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.vaadin.flow.data.provider.hierarchy.HierarchicalQuery;
+import org.springframework.data.domain.Sort;
+
+/**
+ * Hierarchical data provider for trees with many expanded nodes (e.g., org charts)
+ * that reads the children of several parents in one back-end call instead of one
+ * call per parent (N+1):
+ * - The root level is paged as in PageableHierarchicalDataProvider (fetchFromBackEnd).
+ * - hasChildren(item): the rows delivered to the Grid are kept as pending, and the
+ *   first hasChildren call of the render cycle asks hasChildren(Collection) for all
+ *   of them, so a page of rows costs one call.
+ * - the children of a parent are read with fetchChildren(Collection) together with
+ *   the parents registered with prefetchChildren(), e.g. before restoring an expanded
+ *   state with treeGrid.expand(items).
+ *
+ * The children are cached by parent id (see getId) and sort, its counts by parent id
+ * and the hasChildren answers by item id, in LRU caches bounded by getMaxCachedParents()
+ * and getMaxCachedItems(), until refreshAll(). The back-end calls are done outside the
+ * lock of the provider: a request for an item that is being read waits for the same
+ * back-end call, and a result read before a refreshAll() is not cached.
+ *
+ * @project ailegorreta-kit-client-dataprovider
+ * @author rlh
+ * @date October 2023
+ */
+public abstract class BatchedHierarchicalDataProvider<T, F> extends FilterablePageableHierarchicalDataProvider<T, F> {
+
+    private final Map<Object, List<T>> children = lru(this::getMaxCachedParents);
+    private final Map<Object, Integer> childCounts = lru(this::getMaxCachedParents);
+    private final Map<Object, Boolean> hasChildren = lru(this::getMaxCachedItems);
+    private final Map<Object, T> pendingHasChildren = new LinkedHashMap<>();
+    private final Map<Object, T> pendingChildren = new LinkedHashMap<>();
+    private final Map<Object, CompletableFuture<Map<Object, List<T>>>> loadingChildren = new HashMap<>();
+    private final Map<Object, CompletableFuture<Set<Object>>> loadingHasChildren = new HashMap<>();
+    private long generation = 0L;
+
+    /**
+     * All the children of each parent, each list in the sort order (the Grid sort or
+     * getDefaultSortOrders()). A parent without children can be missing in the result.
+     */
+    protected abstract Map<T, List<T>> fetchChildren(Collection<T> parents, Optional<F> filter, Sort sort);
+
+    /**
+     * The items (of the collection) that have children
+     */
+    protected abstract Set<T> hasChildren(Collection<T> items);
+
+    /**
+     * Maximum number of parents or items sent in one back-end call
+     */
+    protected int getBatchSize() {
+        return 200;
+    }
+
+    /**
+     * Maximum number of parents whose children are kept in the cache
+     */
+    protected int getMaxCachedParents() {
+        return 2_000;
+    }
+
+    /**
+     * Maximum number of items whose hasChildren answer is kept in the cache
+     */
+    protected int getMaxCachedItems() {
+        return 20_000;
+    }
+
+    /**
+     * Registers parents whose children are going to be requested, so they are read
+     * in the same back-end call as the first one.
+     */
+    public synchronized void prefetchChildren(Collection<T> parents) {
+        parents.forEach(parent -> {
+            Object id = getId(parent);
+
+            if (!childCounts.containsKey(id))
+                pendingChildren.put(id, parent);
+        });
+    }
+
+    @Override
+    protected Stream<T> fetchChildrenFromBackEnd(HierarchicalQuery<T, F> query) {
+        List<T> rows;
+
+        if (query.getParent() == null)
+            rows = super.fetchChildrenFromBackEnd(query).collect(Collectors.toList());
+        else {
+            List<T> all = children(query.getParent(), createSpringSort(query));
+            int from = Math.min(query.getOffset(), all.size());
+
+            rows = all.subList(from, Math.min(all.size(), from + query.getLimit()));
+        }
+        synchronized (this) {
+            rows.forEach(row -> {
+                Object id = getId(row);
+
+                if (!hasChildren.containsKey(id))
+                    pendingHasChildren.put(id, row);
+            });
+        }
+
+        return rows.stream();
+    }
+
+    @Override
+    public int getChildCount(HierarchicalQuery<T, F> query) {
+        if (query.getParent() == null)
+            return super.getChildCount(query);
+
+        Integer count;
+
+        synchronized (this) {
+            count = childCounts.get(getId(query.getParent()));     // the count does not depend on the sort
+        }
+
+        return (count != null) ? count : children(query.getParent(), createSpringSort(query)).size();
+    }
+
+    @Override
+    public boolean hasChildren(T item) {
+        Object id = getId(item);
+
+        return batchLoad(item, pendingHasChildren, loadingHasChildren, this::getId,
+                         () -> {
+                             Boolean res = hasChildren.get(id);
+
+                             return (res == null) ? null : res ? Collections.singleton(id) : Collections.emptySet();
+                         },
+                         batch -> hasChildren(batch).stream().map(this::getId).collect(Collectors.toSet()),
+                         (batch, withChildren) -> batch.forEach(row -> hasChildren.put(getId(row), withChildren.contains(getId(row)))))
+               .contains(id);
+    }
+
+    private List<T> children(T parent, Sort sort) {
+        Object id = getId(parent);
+
+        return batchLoad(parent, pendingChildren, loadingChildren, p -> Arrays.asList(getId(p), sort),
+                         () -> {
+                             List<T> res = children.get(Arrays.asList(id, sort));
+
+                             return (res == null) ? null : Collections.singletonMap(id, res);
+                         },
+                         batch -> {
+                             Map<Object, List<T>> fetched = new HashMap<>();
+
+                             fetchChildren(batch, getOptionalFilter(), sort).forEach((p, rows) -> fetched.put(getId(p), rows));
+                             return fetched;
+                         },
+                         (batch, fetched) -> batch.forEach(p -> {
+                             List<T> rows = fetched.getOrDefault(getId(p), Collections.emptyList());
+
+                             children.put(Arrays.asList(getId(p), sort), rows);
+                             childCounts.put(getId(p), rows.size());
+                             hasChildren.put(getId(p), !rows.isEmpty());
+                         }))
+               .getOrDefault(id, Collections.emptyList());
+    }
+
+    /**
+     * The cached result of the item, or the result of the back-end call (fetch) for the
+     * batch of the item. The lock is held only to read and store (store) the caches, the
+     * items of the batch are kept in loading while the back-end is called.
+     */
+    private <R> R batchLoad(T item, Map<Object, T> pending, Map<Object, CompletableFuture<R>> loading,
+                            Function<T, Object> key, Supplier<R> cached,
+                            Function<List<T>, R> fetch, BiConsumer<List<T>, R> store) {
+        CompletableFuture<R> load = new CompletableFuture<>();
+        CompletableFuture<R> running;
+        List<T> batch = null;
+        long batchGeneration = 0L;
+
+        synchronized (this) {
+            R res = cached.get();
+
+            if (res != null)
+                return res;
+            running = loading.get(key.apply(item));
+            if (running == null) {
+                batch = batch(getId(item), item, pending);
+                for (T row : batch)
+                    loading.putIfAbsent(key.apply(row), load);
+                batchGeneration = generation;
+            }
+        }
+        if (running != null)
+            return await(running);
+
+        R res;
+
+        try {
+            res = fetch.apply(batch);
+        } catch (RuntimeException | Error e) {
+            synchronized (this) {
+                for (T row : batch)
+                    loading.remove(key.apply(row), load);
+            }
+            load.completeExceptionally(e);
+            throw e;
+        }
+        synchronized (this) {
+            for (T row : batch)
+                loading.remove(key.apply(row), load);
+            if (batchGeneration == generation)      // no refreshAll() while it was read
+                store.accept(batch, res);
+        }
+        load.complete(res);
+
+        return res;
+    }
+
+    /**
+     * The item and up to getBatchSize() - 1 pending items, that are removed from pending
+     */
+    private List<T> batch(Object id, T item, Map<Object, T> pending) {
+        List<T> res = new ArrayList<>();
+
+        res.add(item);
+        pending.remove(id);
+
+        Iterator<Map.Entry<Object, T>> it = pending.entrySet().iterator();
+
+        while (it.hasNext() && res.size() < getBatchSize()) {
+            res.add(it.next().getValue());
+            it.remove();
+        }
+
+        return res;
+    }
+
+    private static <R> R await(CompletableFuture<R> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw e;
+        }
+    }
+
+    private static <V> Map<Object, V> lru(IntSupplier maxSize) {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, V> eldest) {
+                return size() > maxSize.getAsInt();
+            }
+        };
+    }
+
+    @Override
+    public void refreshAll() {
+        synchronized (this) {
+            children.clear();
+            childCounts.clear();
+            hasChildren.clear();
+            pendingHasChildren.clear();
+            pendingChildren.clear();
+            loadingChildren.clear();
+            loadingHasChildren.clear();
+            generation++;
+        }
+        super.refreshAll();
+    }
+}
@@ -0,0 +1,178 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  ChildCountStrategy.java
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntSupplier;
+
+import org.springframework.data.domain.Page;
+
+/**
+ * How a PageableHierarchicalDataProvider answers the child count that the Grid
+ * requests after each refreshAll or filter change:
+ * - exact(): the back-end count each time (e.g., SELECT COUNT(*)).
+ * - cached(ttl): the back-end count, kept during the ttl.
+ * - estimated(): Page.getTotalElements of the first page, so the count comes with
+ *   the first fetch and no count query is issued.
+ * - unknownSize(): for Slice back-ends without totals. The count is the rows already
+ *   read plus one page while the back-end has more, so it grows as the user scrolls
+ *   (TreeGrid has no undefined size mode, so pageFetched returns true when the count
+ *   grows and the data provider asks the Grid to read the count again).
+ *
+ * The key of a count is the filter and the parent of the query.
+ *
+ * @project ailegorreta-kit-client-dataprovider
+ * @author rlh
+ * @date October 2023
+ */
+public interface ChildCountStrategy {
+
+    /**
+     * @param exactCount   back-end count
+     * @param fetchFirstPage reads the first page of the key (so pageFetched is called)
+     */
+    int childCount(Object key, IntSupplier exactCount, Runnable fetchFirstPage);
+
+    /**
+     * Called with each page read from the back-end
+     *
+     * @return true if a count already answered for the key has changed, so the Grid
+     * must ask for it again
+     */
+    default boolean pageFetched(Object key, Page<?> page) {
+        return false;
+    }
+
+    default void invalidate() {
+    }
+
+    static ChildCountStrategy exact() {
+        return (key, exactCount, fetchFirstPage) -> exactCount.getAsInt();
+    }
+
+    static ChildCountStrategy cached(Duration ttl) {
+        return new Cached(ttl);
+    }
+
+    static ChildCountStrategy estimated() {
+        return new Estimated();
+    }
+
+    static ChildCountStrategy unknownSize() {
+        return new UnknownSize();
+    }
+
+    class Cached implements ChildCountStrategy {
+        private final long ttlNanos;
+        private final Map<Object, long[]> counts = new ConcurrentHashMap<>();   // count and expiration
+
+        public Cached(Duration ttl) {
+            this.ttlNanos = ttl.toNanos();
+        }
+
+        @Override
+        public int childCount(Object key, IntSupplier exactCount, Runnable fetchFirstPage) {
+            long now = System.nanoTime();
+            long[] count = counts.get(key);
+
+            if (count == null || now - count[1] > 0) {
+                count = new long[] { exactCount.getAsInt(), now + ttlNanos };
+                counts.put(key, count);
+            }
+
+            return (int) count[0];
+        }
+
+        @Override
+        public void invalidate() {
+            counts.clear();
+        }
+    }
+
+    class Estimated implements ChildCountStrategy {
+        private final Map<Object, Long> totals = new ConcurrentHashMap<>();
+
+        @Override
+        public int childCount(Object key, IntSupplier exactCount, Runnable fetchFirstPage) {
+            Long total = totals.get(key);
+
+            if (total == null) {
+                fetchFirstPage.run();
+                total = totals.get(key);
+            }
+
+            return (total == null) ? exactCount.getAsInt() : (int) Math.min(Integer.MAX_VALUE, total);
+        }
+
+        @Override
+        public boolean pageFetched(Object key, Page<?> page) {
+            totals.putIfAbsent(key, page.getTotalElements());
+            return false;
+        }
+
+        @Override
+        public void invalidate() {
+            totals.clear();
+        }
+    }
+
+    class UnknownSize implements ChildCountStrategy {
+        private final Map<Object, long[]> seen = new ConcurrentHashMap<>();    // rows read and if it has more
+
+        @Override
+        public int childCount(Object key, IntSupplier exactCount, Runnable fetchFirstPage) {
+            if (!seen.containsKey(key))
+                fetchFirstPage.run();
+
+            long[] rows = seen.get(key);
+
+            if (rows == null)
+                return exactCount.getAsInt();
+
+            return (int) Math.min(Integer.MAX_VALUE, rows[0] + rows[1]);
+        }
+
+        @Override
+        public boolean pageFetched(Object key, Page<?> page) {
+            long end = page.getNumber() * (long) page.getSize() + page.getNumberOfElements();
+            long more = page.hasNext() ? page.getSize() : 0;
+            boolean[] grew = { false };
+
+            seen.compute(key, (k, a) -> {
+                if (a != null && end < a[0])
+                    return a;
+                grew[0] = (a != null) && end + more > a[0] + a[1];
+                return new long[] { end, more };
+            });
+
+            return grew[0];
+        }
+
+        @Override
+        public void invalidate() {
+            seen.clear();
+        }
+    }
+}
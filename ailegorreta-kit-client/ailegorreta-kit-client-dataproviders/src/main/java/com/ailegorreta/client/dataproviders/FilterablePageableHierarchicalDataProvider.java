@@ -49,6 +49,16 @@ public abstract class FilterablePageableHierarchicalDataProvider<T, F> extends P
         refreshAll();
     }
 
+    @Override
+    protected Stream<T> fetchChildrenFromBackEnd(HierarchicalQuery<T, F> query) {
+        return fetchCached(getFilterQuery(query));
+    }
+
+    @Override
+    public int getChildCount(HierarchicalQuery<T, F> query) {
+        return countCached(getFilterQuery(query));
+    }
+
     protected HierarchicalQuery<T, F> getFilterQuery(HierarchicalQuery<T, F> t) {
         return new HierarchicalQuery(t.getOffset(), t.getLimit(), t.getSortOrders(),
                                      t.getInMemorySorting(), filter, t.getParent());
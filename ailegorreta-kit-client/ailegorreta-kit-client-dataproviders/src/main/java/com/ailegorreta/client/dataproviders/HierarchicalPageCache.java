@@ -0,0 +1,304 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  HierarchicalPageCache.java
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+
+/**
+ * Read-ahead cache of the back-end pages of a PageableHierarchicalDataProvider.
+ *
+ * The Grid ranges are aligned to pages of a fixed size, so overlapping ranges
+ * reuse the same pages. Each page is keyed by (filter, sort, parent, page number)
+ * and the cache keeps the last maxPages pages (LRU).
+ *
+ * After each request the next page in the scroll direction is loaded in the
+ * prefetch executor (the previous page when the user scrolls up). A page being
+ * loaded is kept as a future, so a request for it waits for the same back-end call.
+ * A failed load (or a prefetch rejected by the executor) is removed from the cache,
+ * so the next request reads the page again.
+ *
+ * For a non-blocking back-end use fetchAsync with an AsyncPageLoader: no thread waits
+ * for the pages and the prefetch just starts the back-end call (the prefetch executor
+ * is not used, null still disables the prefetch).
+ *
+ * @project ailegorreta-kit-client-dataprovider
+ * @author rlh
+ * @date October 2023
+ */
+public class HierarchicalPageCache<T> {
+
+    @FunctionalInterface
+    public interface PageLoader<T> {
+        List<T> load(Pageable pageable);
+    }
+
+    @FunctionalInterface
+    public interface AsyncPageLoader<T> {
+        CompletableFuture<List<T>> load(Pageable pageable);
+    }
+
+    private final int pageSize;
+    private final Executor prefetchExecutor;
+    private final Map<PageKey, CompletableFuture<List<T>>> pages;
+    private final Map<PageKey, Integer> lastPages;
+
+    /**
+     * @param prefetchExecutor null to disable the prefetch
+     */
+    public HierarchicalPageCache(int pageSize, int maxPages, Executor prefetchExecutor) {
+        this.pageSize = pageSize;
+        this.prefetchExecutor = prefetchExecutor;
+        this.pages = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PageKey, CompletableFuture<List<T>>> eldest) {
+                return size() > maxPages;
+            }
+        };
+        this.lastPages = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PageKey, Integer> eldest) {
+                return size() > maxPages;
+            }
+        };
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Rows from offset to offset + limit, the missing pages are loaded in the caller thread.
+     */
+    public List<T> fetch(Object filter, Sort sort, Object parent, int offset, int limit, PageLoader<T> loader) {
+        if (limit <= 0)
+            return Collections.emptyList();
+
+        int first = offset / pageSize;
+        int last = (offset + limit - 1) / pageSize;
+        List<T> rows = new ArrayList<>(limit);
+        boolean complete = true;
+
+        for (int p = first; p <= last && complete; p++)
+            complete = addRows(rows, load(new PageKey(filter, sort, parent, p), loader), p, offset, limit);
+
+        int next = prefetchPage(new PageKey(filter, sort, parent, -1), first, last, complete);
+
+        if (next >= 0)
+            page(new PageKey(filter, sort, parent, next), loader, true);
+
+        return rows;
+    }
+
+    /**
+     * Rows from offset to offset + limit, completed when the missing pages are loaded.
+     * The pages are requested one after the other, since a short page is the last one.
+     */
+    public CompletableFuture<List<T>> fetchAsync(Object filter, Sort sort, Object parent, int offset, int limit,
+                                                 AsyncPageLoader<T> loader) {
+        if (limit <= 0)
+            return CompletableFuture.completedFuture(Collections.emptyList());
+
+        int first = offset / pageSize;
+        int last = (offset + limit - 1) / pageSize;
+        List<T> rows = new ArrayList<>(limit);
+        CompletableFuture<Boolean> complete = CompletableFuture.completedFuture(true);
+
+        for (int p = first; p <= last; p++) {
+            PageKey key = new PageKey(filter, sort, parent, p);
+
+            complete = complete.thenCompose(more -> more ? page(key, loader).thenApply(page -> addRows(rows, page, key.page, offset, limit))
+                                                         : CompletableFuture.completedFuture(false));
+        }
+
+        return complete.thenApply(more -> {
+            int next = prefetchPage(new PageKey(filter, sort, parent, -1), first, last, more);
+
+            if (next >= 0)
+                page(new PageKey(filter, sort, parent, next), loader);
+            return rows;
+        });
+    }
+
+    /**
+     * Adds the rows of the page p that are in the range, returns false if it is the last page
+     */
+    private boolean addRows(List<T> rows, List<T> page, int p, int offset, int limit) {
+        int from = Math.max(0, offset - p * pageSize);
+        int to = Math.min(page.size(), offset + limit - p * pageSize);
+
+        if (from < to)
+            rows.addAll(page.subList(from, to));
+
+        return page.size() == pageSize;     // a short page is the last one
+    }
+
+    public synchronized void invalidate() {
+        pages.clear();
+        lastPages.clear();
+    }
+
+    /**
+     * The page to prefetch in the scroll direction, or -1 if there is none
+     */
+    private int prefetchPage(PageKey query, int first, int last, boolean hasMore) {
+        Integer previous;
+
+        synchronized (this) {
+            previous = lastPages.put(query, first);
+        }
+        if (prefetchExecutor == null)
+            return -1;
+        if (previous == null || first >= previous)
+            return hasMore ? last + 1 : -1;
+
+        return first - 1;
+    }
+
+    private List<T> load(PageKey key, PageLoader<T> loader) {
+        try {
+            return await(page(key, loader, false));
+        } catch (RejectedExecutionException e) {
+            return await(page(key, loader, false));     // the prefetch of the page was rejected, read it now
+        }
+    }
+
+    private CompletableFuture<List<T>> page(PageKey key, PageLoader<T> loader, boolean async) {
+        return page(key, future -> {
+            Runnable load = () -> {
+                try {
+                    future.complete(loader.load(PageRequest.of(key.page, pageSize, key.sort)));
+                } catch (Throwable e) {
+                    fail(key, future, e);
+                    if (e instanceof Error)
+                        throw (Error) e;
+                }
+            };
+
+            if (!async)
+                load.run();
+            else {
+                try {
+                    prefetchExecutor.execute(load);
+                } catch (RejectedExecutionException e) {
+                    fail(key, future, e);
+                }
+            }
+        });
+    }
+
+    private CompletableFuture<List<T>> page(PageKey key, AsyncPageLoader<T> loader) {
+        return page(key, future -> {
+            try {
+                loader.load(PageRequest.of(key.page, pageSize, key.sort))
+                      .whenComplete((rows, e) -> {
+                          if (e == null)
+                              future.complete(rows);
+                          else
+                              fail(key, future, (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e);
+                      });
+            } catch (RuntimeException e) {
+                fail(key, future, e);
+            }
+        });
+    }
+
+    /**
+     * The cached page, or a new one that is loaded by start
+     */
+    private CompletableFuture<List<T>> page(PageKey key, Consumer<CompletableFuture<List<T>>> start) {
+        CompletableFuture<List<T>> res;
+
+        synchronized (this) {
+            res = pages.get(key);
+            if (res != null)
+                return res;
+            res = new CompletableFuture<>();
+            pages.put(key, res);
+        }
+        start.accept(res);
+
+        return res;
+    }
+
+    private void fail(PageKey key, CompletableFuture<List<T>> future, Throwable e) {
+        synchronized (this) {
+            pages.remove(key, future);
+        }
+        future.completeExceptionally(e);
+    }
+
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw e;
+        }
+    }
+
+    private static final class PageKey {
+        private final Object filter;
+        private final Sort sort;
+        private final Object parent;
+        private final int page;
+
+        PageKey(Object filter, Sort sort, Object parent, int page) {
+            this.filter = filter;
+            this.sort = sort;
+            this.parent = parent;
+            this.page = page;
+        }
+
+        PageKey withPage(int page) {
+            return new PageKey(filter, sort, parent, page);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof PageKey)) return false;
+
+            PageKey other = (PageKey) o;
+
+            return page == other.page && Objects.equals(filter, other.filter) &&
+                   Objects.equals(sort, other.sort) && Objects.equals(parent, other.parent);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(filter, sort, parent, page);
+        }
+    }
+}
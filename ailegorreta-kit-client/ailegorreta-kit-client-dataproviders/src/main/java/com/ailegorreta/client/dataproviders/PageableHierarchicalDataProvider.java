@@ -22,10 +22,18 @@
  */
 package com.ailegorreta.client.dataproviders;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.data.provider.DataChangeEvent;
 import com.vaadin.flow.data.provider.hierarchy.AbstractBackEndHierarchicalDataProvider;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
@@ -45,14 +53,172 @@ import com.vaadin.flow.data.provider.SortDirection;
  *
  * @see //github.com/Artur-/spring-data-provider/blob/master/src/main/java/org/vaadin/artur/spring/dataprovider/FilterablePageableDataProvider.java
  *
+ * The children are read through a HierarchicalPageCache: the Grid ranges are
+ * aligned to back-end pages of getCachePageSize() rows and the next page in the
+ * scroll direction is prefetched. The cache is invalidated by refreshAll().
+ *
+ * The child count is answered by the getChildCountStrategy() (see ChildCountStrategy)
+ * with countFromBackEnd as the exact count (the total of the first page unless it is
+ * overridden).
+ *
+ * note: the prefetch calls fetchFromBackEnd in the getPrefetchExecutor() threads, so
+ * it cannot rely on thread locals of the request (e.g., the security context). In
+ * that case return an executor that propagates them, or null to disable the prefetch.
+ *
  * @project ailegorreta-kit-client-dataprovider
  * @author rlh
  * @datre July 2023
  */
 public abstract class PageableHierarchicalDataProvider<T, F> extends AbstractBackEndHierarchicalDataProvider<T, F> {
 
+    private HierarchicalPageCache<T> pageCache = null;
+    private ChildCountStrategy countStrategy = null;
+
     protected abstract Page<T> fetchFromBackEnd(HierarchicalQuery<T, F> query, Pageable pageable);
 
+    @Override
+    protected Stream<T> fetchChildrenFromBackEnd(HierarchicalQuery<T, F> query) {
+        return fetchCached(query);
+    }
+
+    /**
+     * Rows of the query taken from the page cache, the missing pages are read
+     * with fetchFromBackEnd.
+     */
+    protected Stream<T> fetchCached(HierarchicalQuery<T, F> query) {
+        UI ui = UI.getCurrent();
+
+        return getPageCache().fetch(query.getFilter().orElse(null), createSpringSort(query), query.getParent(),
+                                    query.getOffset(), query.getLimit(),
+                                    pageable -> pageFetched(query, fetchFromBackEnd(query, pageable), ui))
+                             .stream();
+    }
+
+    /**
+     * Gives the page read from the back-end to the ChildCountStrategy and returns its rows.
+     * The ui (if any) is refreshed when the page changes the child count.
+     */
+    protected List<T> pageFetched(HierarchicalQuery<T, F> query, Page<T> page, UI ui) {
+        if (getCountStrategy().pageFetched(countKey(query), page) && ui != null)
+            ui.access(this::refreshRows);   // after the current Grid request
+
+        return page.getContent();
+    }
+
+    @Override
+    public int getChildCount(HierarchicalQuery<T, F> query) {
+        return countCached(query);
+    }
+
+    /**
+     * Child count of the query answered by the ChildCountStrategy
+     */
+    protected int countCached(HierarchicalQuery<T, F> query) {
+        return getCountStrategy().childCount(countKey(query),
+                () -> countFromBackEnd(query),
+                () -> fetchCached(new HierarchicalQuery<>(0, getCachePageSize(), query.getSortOrders(),
+                                                          query.getInMemorySorting(), query.getFilter().orElse(null),
+                                                          query.getParent())).count());
+    }
+
+    /**
+     * Exact number of children in the back-end. By default it is the total of the first
+     * page read with fetchFromBackEnd, override it if the back-end has a cheaper count
+     * (e.g., SELECT COUNT(*) without reading rows). The Estimated and UnknownSize
+     * strategies call it only if the first page does not give the count.
+     */
+    protected int countFromBackEnd(HierarchicalQuery<T, F> query) {
+        Page<T> page = fetchFromBackEnd(query, PageRequest.of(0, getCachePageSize(), createSpringSort(query)));
+
+        return (int) Math.min(Integer.MAX_VALUE, page.getTotalElements());
+    }
+
+    /**
+     * By default the exact count is requested each time, override it to use a
+     * cached, estimated or unknown size count.
+     */
+    protected ChildCountStrategy getChildCountStrategy() {
+        return ChildCountStrategy.exact();
+    }
+
+    private synchronized ChildCountStrategy getCountStrategy() {
+        if (countStrategy == null)
+            countStrategy = getChildCountStrategy();
+
+        return countStrategy;
+    }
+
+    private Object countKey(HierarchicalQuery<T, F> query) {
+        return Arrays.asList(query.getFilter().orElse(null), query.getParent());
+    }
+
+    protected synchronized HierarchicalPageCache<T> getPageCache() {
+        if (pageCache == null)
+            pageCache = new HierarchicalPageCache<>(getCachePageSize(), getCacheMaxPages(), getPrefetchExecutor());
+
+        return pageCache;
+    }
+
+    /**
+     * Size of the back-end pages
+     */
+    protected int getCachePageSize() {
+        return 50;
+    }
+
+    /**
+     * Maximum number of pages kept in the cache
+     */
+    protected int getCacheMaxPages() {
+        return 20;
+    }
+
+    /**
+     * Executor for the read-ahead of the next page, null disables it. By default a
+     * dedicated pool shared by all the data providers (the common pool is never used),
+     * with a bounded queue: when it is full the prefetch is skipped.
+     */
+    protected Executor getPrefetchExecutor() {
+        return SharedPrefetchExecutor.EXECUTOR;
+    }
+
+    private static final class SharedPrefetchExecutor {
+        static final ThreadPoolExecutor EXECUTOR = create(Math.max(2, Runtime.getRuntime().availableProcessors() / 4));
+
+        private static ThreadPoolExecutor create(int threads) {
+            AtomicInteger threadCount = new AtomicInteger();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                                                                 new LinkedBlockingQueue<>(threads * 16),
+                                                                 r -> {
+                                                                     Thread thread = new Thread(r, "hierarchical-prefetch-" + threadCount.incrementAndGet());
+
+                                                                     thread.setDaemon(true);
+                                                                     return thread;
+                                                                 });
+
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+
+    /**
+     * Asks the Grid to read the counts and rows again without invalidating the caches (as refreshAll does)
+     */
+    protected void refreshRows() {
+        fireEvent(new DataChangeEvent<>(this));
+    }
+
+    @Override
+    public void refreshAll() {
+        synchronized (this) {
+            if (pageCache != null)
+                pageCache.invalidate();
+            if (countStrategy != null)
+                countStrategy.invalidate();
+        }
+        super.refreshAll();
+    }
+
     protected Pageable getPageable(HierarchicalQuery<T, F> q) {
         Pair<Integer, Integer> pageSizeAndNumber = limitAndOffsetToPageSizeAndNumber(
                 q.getOffset(), q.getLimit());
@@ -60,7 +226,10 @@ public abstract class PageableHierarchicalDataProvider<T, F> extends AbstractBac
         return PageRequest.of(pageSizeAndNumber.getSecond(), pageSizeAndNumber.getFirst(), createSpringSort(q));
     }
 
-    private <T, F> Sort createSpringSort(HierarchicalQuery<T, F> q) {
+    /**
+     * Sort of the query, or of getDefaultSortOrders() if the query is not sorted
+     */
+    protected Sort createSpringSort(HierarchicalQuery<?, ?> q) {
         List<QuerySortOrder> sortOrders;
 
         if (q.getSortOrders().isEmpty())
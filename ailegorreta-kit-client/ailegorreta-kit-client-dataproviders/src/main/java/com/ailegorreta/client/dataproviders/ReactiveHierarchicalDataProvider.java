@@ -0,0 +1,224 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  ReactiveHierarchicalDataProvider.java
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+
+import com.ailegorreta.client.dataproviders.exceptions.WebClientException;
+import com.ailegorreta.commons.utils.HasLogger;
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.data.provider.hierarchy.HierarchicalQuery;
+import org.slf4j.Logger;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Hierarchical data provider for back-ends that return a Flux (e.g., WebClient
+ * bodyToFlux) or a Mono of a Page, so the subclasses do not call block() in the
+ * Vaadin request:
+ * - Implement fetchPage (the page with its total) and countMono (the exact count).
+ *   For a Flux back-end without totals return pageOf(flux, pageable): only the rows
+ *   of the page are requested, the Flux is consumed with limitRate(page size) and
+ *   cancelled after take(page size).
+ * - Every back-end call has the getTimeout(), a timeout is a WebClientException(504).
+ * - The pages are read with HierarchicalPageCache.fetchAsync: the Monos are subscribed
+ *   (toFuture), so the prefetch of the next page does not hold any thread while the
+ *   back-end answers. Without push the Vaadin request (that must return the rows)
+ *   waits for the future of its page.
+ * - When the UI has Vaadin push enabled, the request waits getPushWait() for a page
+ *   that is not in the cache. If it does not arrive, the Grid receives the
+ *   getPlaceholder() rows for the whole range and it is refreshed with ui.access()
+ *   when the page arrives. Without placeholders the request waits for the page.
+ *
+ * @project ailegorreta-kit-client-dataprovider
+ * @author rlh
+ * @date October 2023
+ */
+public abstract class ReactiveHierarchicalDataProvider<T, F> extends FilterablePageableHierarchicalDataProvider<T, F>
+                                                             implements HasLogger {
+
+    /**
+     * The page of the query with its total (see pageOf for a Flux back-end)
+     */
+    protected abstract Mono<Page<T>> fetchPage(HierarchicalQuery<T, F> query, Pageable pageable);
+
+    /**
+     * Exact number of children in the back-end
+     */
+    protected abstract Mono<Long> countMono(HierarchicalQuery<T, F> query);
+
+    /**
+     * Page built from the rows of a Flux, only pageable.getPageSize() of them are requested.
+     * Since the total is unknown it is the rows read plus one if the page is full
+     * (see ChildCountStrategy.unknownSize()).
+     */
+    protected Mono<Page<T>> pageOf(Flux<T> rows, Pageable pageable) {
+        int size = pageable.getPageSize();
+
+        return rows.limitRate(size)
+                   .take(size)
+                   .collectList()
+                   .map(page -> new PageImpl<>(page, pageable,
+                                               pageable.getOffset() + page.size() + (page.size() == size ? 1 : 0)));
+    }
+
+    /**
+     * Row shown with push in the position index (of the query) while its page is read.
+     * By default there are no placeholders (null) and the request waits for the page.
+     *
+     * note: each placeholder must be a different item for the Grid (e.g., with the parent
+     * and the index as id) and hasChildren() must be false for it.
+     */
+    protected T getPlaceholder(HierarchicalQuery<T, F> query, int index) {
+        return null;
+    }
+
+    /**
+     * Maximum time for each back-end call
+     */
+    protected Duration getTimeout() {
+        return Duration.ofSeconds(30);
+    }
+
+    /**
+     * With push, time the request waits for a missing page before answering with
+     * the placeholders (so the fast back-end answers do not need a second round trip)
+     */
+    protected Duration getPushWait() {
+        return Duration.ofMillis(100);
+    }
+
+    @Override
+    protected final Page<T> fetchFromBackEnd(HierarchicalQuery<T, F> query, Pageable pageable) {
+        return await(withTimeout(fetchPage(query, pageable), "page " + pageable.getPageNumber()).toFuture());
+    }
+
+    @Override
+    protected int countFromBackEnd(HierarchicalQuery<T, F> query) {
+        Long count = await(withTimeout(countMono(query), "count").toFuture());
+
+        return (count == null) ? 0 : (int) Math.min(Integer.MAX_VALUE, count);
+    }
+
+    @Override
+    protected Stream<T> fetchCached(HierarchicalQuery<T, F> query) {
+        return await(fetchAsync(query, UI.getCurrent())).stream();
+    }
+
+    @Override
+    protected Stream<T> fetchChildrenFromBackEnd(HierarchicalQuery<T, F> query) {
+        UI ui = UI.getCurrent();
+
+        if (ui == null || !ui.getPushConfiguration().getPushMode().isEnabled())
+            return super.fetchChildrenFromBackEnd(query);
+
+        HierarchicalQuery<T, F> filterQuery = getFilterQuery(query);
+        CompletableFuture<List<T>> rows = fetchAsync(filterQuery, ui);
+
+        try {
+            return rows.get(getPushWait().toMillis(), TimeUnit.MILLISECONDS).stream();
+        } catch (TimeoutException e) {
+            List<T> placeholders = placeholders(filterQuery);
+
+            if (placeholders == null)
+                return await(rows).stream();
+            rows.whenComplete((result, error) -> {
+                if (error != null)
+                    getLogger().error("Error reading the rows of {}: {}", getClass().getSimpleName(), error.getMessage());
+                else
+                    ui.access(this::refreshRows);       // the page is cached now
+            });
+            return placeholders.stream();               // until the refresh
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Stream.empty();
+        }
+    }
+
+    /**
+     * Rows of the query from the page cache, the missing pages are requested to fetchPage
+     */
+    private CompletableFuture<List<T>> fetchAsync(HierarchicalQuery<T, F> query, UI ui) {
+        return getPageCache().fetchAsync(query.getFilter().orElse(null), createSpringSort(query), query.getParent(),
+                                         query.getOffset(), query.getLimit(),
+                                         pageable -> withTimeout(fetchPage(query, pageable), "page " + pageable.getPageNumber())
+                                                         .toFuture()
+                                                         .thenApply(page -> pageFetched(query, page, ui)));
+    }
+
+    /**
+     * The placeholders of the whole range, or null if there are none
+     */
+    private List<T> placeholders(HierarchicalQuery<T, F> query) {
+        List<T> res = new ArrayList<>(query.getLimit());
+
+        for (int i = 0; i < query.getLimit(); i++) {
+            T placeholder = getPlaceholder(query, query.getOffset() + i);
+
+            if (placeholder == null)
+                return null;
+            res.add(placeholder);
+        }
+
+        return res;
+    }
+
+    private <R> Mono<R> withTimeout(Mono<R> mono, String what) {
+        return mono.timeout(getTimeout())
+                   .onErrorMap(TimeoutException.class,
+                               e -> new WebClientException(504, "Timeout reading " + what + " of " + getClass().getSimpleName(), e));
+    }
+
+    private static <R> R await(CompletableFuture<R> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw unwrap(e.getCause());
+        }
+    }
+
+    private static RuntimeException unwrap(Throwable e) {
+        if (e instanceof RuntimeException)
+            return (RuntimeException) e;
+        if (e instanceof Error)
+            throw (Error) e;
+
+        return new IllegalStateException(e);
+    }
+
+    @Override
+    public Logger getLogger() { return HasLogger.DefaultImpls.getLogger(this); }
+}
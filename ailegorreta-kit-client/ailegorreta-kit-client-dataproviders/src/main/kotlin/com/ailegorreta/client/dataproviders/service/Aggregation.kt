@@ -0,0 +1,283 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  Aggregation.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import com.ailegorreta.commons.dtomappers.PropertyAccessor
+import java.math.BigDecimal
+
+enum class AggregateFunction { COUNT, SUM, MIN, MAX }
+
+/**
+ * One aggregation requested to InMemoryService.aggregate(), e.g. the footer total
+ * Aggregation.sum("monto") or the facet count Aggregation.count()
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+data class Aggregation(val function: AggregateFunction, val propertyName: String? = null) {
+
+    companion object {
+        /**
+         * Number of rows
+         */
+        fun count() = Aggregation(AggregateFunction.COUNT)
+
+        /**
+         * Number of rows with a non-null value
+         */
+        fun count(propertyName: String) = Aggregation(AggregateFunction.COUNT, propertyName)
+
+        fun sum(propertyName: String) = Aggregation(AggregateFunction.SUM, propertyName)
+
+        fun min(propertyName: String) = Aggregation(AggregateFunction.MIN, propertyName)
+
+        fun max(propertyName: String) = Aggregation(AggregateFunction.MAX, propertyName)
+    }
+}
+
+/**
+ * Aggregated values for each group, in the same order of the requested aggregations.
+ * Without groupBy there is only the ALL group. A null group key is the group of the
+ * rows with a null value.
+ */
+class AggregateResult(val aggregations: List<Aggregation>, val groups: Map<Any?, List<Any?>>) {
+
+    val values: List<Any?>
+        get() = groups[ALL] ?: aggregations.map { if (it.function == AggregateFunction.COUNT) 0L else null }
+
+    operator fun get(group: Any?, aggregation: Aggregation): Any? =
+        groups[group]?.get(aggregations.indexOf(aggregation))
+
+    companion object {
+        val ALL = Any()
+    }
+}
+
+/**
+ * Accumulates the rows of a filter result for the requested aggregations. The
+ * state is a map from group to accumulators, so each chunk of a parallel pass
+ * has its own state and the states are combined at the end.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class Aggregator<T>(accessors: Map<String, PropertyAccessor<T>>,
+                    groupBy: String?,
+                    private val aggregations: List<Aggregation>) {
+
+    private val group = groupBy?.let { accessor(accessors, it) }
+    private val props = aggregations.map { a -> a.propertyName?.let { accessor(accessors, it) } }
+    private val comparators = props.map { prop -> prop?.let { ValueTypes.of(it.type).comparator } ?: ValueTypes.dynamic.comparator }
+
+    fun newState() = HashMap<Any?, Array<Accumulator>>()
+
+    fun accumulate(state: HashMap<Any?, Array<Accumulator>>, row: T) {
+        val key = if (group == null) AggregateResult.ALL else group.get(row)
+        val accumulators = state.getOrPut(key) { Array(aggregations.size) { newAccumulator(it) } }
+
+        for (i in accumulators.indices) {
+            val prop = props[i]
+
+            accumulators[i].add(if (prop == null) row else prop.get(row))
+        }
+    }
+
+    fun combine(a: HashMap<Any?, Array<Accumulator>>, b: HashMap<Any?, Array<Accumulator>>): HashMap<Any?, Array<Accumulator>> {
+        b.forEach { (key, accumulators) ->
+            val target = a[key]
+
+            if (target == null)
+                a[key] = accumulators
+            else
+                for (i in target.indices) target[i].merge(accumulators[i])
+        }
+
+        return a
+    }
+
+    fun result(state: HashMap<Any?, Array<Accumulator>>) =
+        AggregateResult(aggregations, state.mapValues { (_, accumulators) -> accumulators.map { it.result() } })
+
+    private fun accessor(accessors: Map<String, PropertyAccessor<T>>, propertyName: String) =
+        accessors[propertyName] ?: throw IllegalArgumentException("Property $propertyName not declare as filterable")
+
+    private fun newAccumulator(i: Int): Accumulator =
+        when (aggregations[i].function) {
+            AggregateFunction.COUNT -> CountAccumulator()
+            AggregateFunction.SUM -> SumAccumulator()
+            AggregateFunction.MIN -> MinMaxAccumulator(1, comparators[i])
+            AggregateFunction.MAX -> MinMaxAccumulator(-1, comparators[i])
+        }
+}
+
+/**
+ * Mutable accumulator of one aggregation, null values are ignored
+ */
+interface Accumulator {
+    fun add(value: Any?)
+
+    fun merge(other: Accumulator)
+
+    fun result(): Any?
+}
+
+class CountAccumulator: Accumulator {
+    private var count = 0L
+
+    override fun add(value: Any?) {
+        if (value != null) count++
+    }
+
+    override fun merge(other: Accumulator) {
+        count += (other as CountAccumulator).count
+    }
+
+    override fun result(): Any = count
+}
+
+/**
+ * Sum of Int/Long (as Long), Double/Float (as Double) or BigDecimal values. When
+ * the Long total overflows it continues as a BigDecimal total (and the result is a
+ * BigDecimal).
+ */
+class SumAccumulator: Accumulator {
+    private var longSum = 0L
+    private var doubleSum = 0.0
+    private var decimalSum: BigDecimalSum? = null
+    private var kind = 0        // 0: no values, 1: integer, 2: floating point
+
+    override fun add(value: Any?) {
+        when (value) {
+            null -> return
+            is BigDecimal -> decimals().add(value)
+            is Double, is Float -> { doubleSum += (value as Number).toDouble(); kind = 2 }
+            is Number -> { addLong(value.toLong()); if (kind == 0) kind = 1 }
+            else -> throw IllegalArgumentException("Illegal sum of ${value::class}")
+        }
+    }
+
+    override fun merge(other: Accumulator) {
+        other as SumAccumulator
+        addLong(other.longSum)
+        doubleSum += other.doubleSum
+        kind = maxOf(kind, other.kind)
+        other.decimalSum?.let { decimals().merge(it) }
+    }
+
+    override fun result(): Any? {
+        val decimal = decimalSum?.result()
+                ?: return when (kind) {
+                              1 -> longSum
+                              2 -> doubleSum + longSum
+                              else -> null
+                          }
+        val res = decimal.add(BigDecimal.valueOf(longSum))
+
+        return if (kind == 2) res.add(BigDecimal.valueOf(doubleSum)) else res
+    }
+
+    private fun addLong(value: Long) {
+        try {
+            longSum = Math.addExact(longSum, value)
+        } catch (e: ArithmeticException) {
+            decimals().add(BigDecimal.valueOf(longSum))
+            longSum = value
+        }
+    }
+
+    private fun decimals(): BigDecimalSum = decimalSum ?: BigDecimalSum().also { decimalSum = it }
+}
+
+/**
+ * Minimum (sign 1) or maximum (sign -1) with the comparator of the property ValueType
+ */
+class MinMaxAccumulator(private val sign: Int, private val comparator: Comparator<Any>): Accumulator {
+    private var best: Any? = null
+
+    override fun add(value: Any?) {
+        val current = best
+
+        if (value != null && (current == null || sign * comparator.compare(value, current) < 0))
+            best = value
+    }
+
+    override fun merge(other: Accumulator) = add((other as MinMaxAccumulator).best)
+
+    override fun result() = best
+}
+
+/**
+ * BigDecimal sum that keeps a long total of the unscaled values for each scale, so
+ * the partial totals are not BigDecimals and they are never rescaled. The unscaled
+ * value of each added value is read with unscaledValue().longValueExact(). The values
+ * that do not fit in a long (or with a negative or too large scale) and the totals
+ * that overflow are added to a BigDecimal.
+ */
+class BigDecimalSum {
+    private val sums = LongArray(MAX_SCALE + 1)
+    private var scale = 0
+    private var overflow: BigDecimal? = null
+
+    fun add(value: BigDecimal) {
+        val valueScale = value.scale()
+
+        if (valueScale < 0 || valueScale > MAX_SCALE || value.precision() > MAX_LONG_DIGITS)
+            spill(value)
+        else
+            add(value.unscaledValue().longValueExact(), valueScale)
+    }
+
+    fun merge(other: BigDecimalSum) {
+        other.sums.forEachIndexed { i, sum -> if (sum != 0L) add(sum, i) }
+        scale = maxOf(scale, other.scale)
+        other.overflow?.let { spill(it) }
+    }
+
+    private fun add(unscaled: Long, valueScale: Int) {
+        try {
+            sums[valueScale] = Math.addExact(sums[valueScale], unscaled)
+        } catch (e: ArithmeticException) {
+            spill(BigDecimal.valueOf(unscaled, valueScale))
+        }
+        if (valueScale > scale) scale = valueScale
+    }
+
+    private fun spill(value: BigDecimal) {
+        overflow = overflow?.add(value) ?: value
+    }
+
+    fun result(): BigDecimal {
+        var res = overflow ?: BigDecimal.ZERO
+
+        sums.forEachIndexed { i, sum -> if (sum != 0L) res = res.add(BigDecimal.valueOf(sum, i)) }
+
+        return if (res.scale() < scale) res.setScale(scale) else res
+    }
+
+    companion object {
+        private const val MAX_LONG_DIGITS = 18
+        private const val MAX_SCALE = 18
+    }
+}
@@ -0,0 +1,107 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  BitmapIndex.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import com.github.mvysny.vokdataloader.*
+
+/**
+ * Index for a property with few distinct values (booleans, enums, status codes):
+ * one RoaringBitmap with the row positions for each value, null included.
+ *
+ * It resolves the EqFilter, the IsNullFilter and the OR of them over the same
+ * property (the IN filter). Several conjuncts are combined as a word by word AND
+ * of the bitmaps, so the positions are only extracted at the end.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class BitmapIndex<T>(val propertyName: String, rows: List<T>,
+                     private val getter: (T) -> Any?,
+                     private val type: ValueType): RowIndex<T> {
+
+    private val bitmaps = HashMap<Any?, RoaringBitmap>()
+
+    init {
+        rows.forEachIndexed { i, row -> bitmaps.getOrPut(key(row)) { RoaringBitmap() }.add(i) }
+    }
+
+    override fun insert(position: Int, row: T) {
+        bitmaps.getOrPut(key(row)) { RoaringBitmap() }.add(position)
+    }
+
+    override fun remove(position: Int, row: T) {
+        val value = key(row)
+        val bitmap = bitmaps[value] ?: return
+
+        bitmap.remove(position)
+        if (bitmap.cardinality == 0) bitmaps.remove(value)
+    }
+
+    /**
+     * Rows of the filter or null if it cannot be resolved by this index. The
+     * returned bitmap must not be modified.
+     */
+    fun lookup(filter: Filter<*>): RoaringBitmap? =
+        when (filter) {
+            is EqFilter<*> -> if (filter.propertyName == propertyName) bitmap(filter.value) else null
+            is IsNullFilter<*> -> if (filter.propertyName == propertyName) bitmaps[null] ?: RoaringBitmap() else null
+            is OrFilter<*> -> {
+                var res: RoaringBitmap? = RoaringBitmap()
+
+                filter.children.forEach { child -> res = lookup(child)?.let { res?.or(it) } }
+                res
+            }
+            else -> null
+        }
+
+    private fun bitmap(value: Any?): RoaringBitmap {
+        val key = value?.let {
+                      try {
+                          type.hashKey(type.converter(it))
+                      } catch (e: RuntimeException) {
+                          it
+                      }
+                  }
+
+        return bitmaps[key] ?: RoaringBitmap()
+    }
+
+    private fun key(row: T): Any? = getter(row)?.let { type.hashKey(it) }
+
+    companion object {
+        /**
+         * True if the filter can be resolved by a bitmap index of one of the properties
+         */
+        fun supports(filter: Filter<*>, properties: Set<String>): Boolean =
+            when (filter) {
+                is EqFilter<*>, is IsNullFilter<*> -> (filter as BeanFilter<*>).propertyName in properties
+                is OrFilter<*> -> {
+                    val names = filter.children.map { (it as? BeanFilter<*>)?.propertyName }.toSet()
+
+                    names.size == 1 && filter.children.all { supports(it, properties) }
+                }
+                else -> false
+            }
+    }
+}
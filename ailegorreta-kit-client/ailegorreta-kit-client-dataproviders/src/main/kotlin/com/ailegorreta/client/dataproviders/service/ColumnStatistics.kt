@@ -0,0 +1,208 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  ColumnStatistics.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import com.ailegorreta.commons.dtomappers.FilteredDTO
+import com.ailegorreta.commons.dtomappers.PropertyAccessors
+import com.github.mvysny.vokdataloader.CompareOperator
+
+/**
+ * Statistics of one filterable property used by the QueryPlanner to estimate the
+ * selectivity of the filters: fraction of nulls, number of distinct values (a
+ * HyperLogLog sketch), min and max, and an equi-depth histogram (the values at
+ * each 1/BUCKETS fraction of the sorted values).
+ *
+ * The statistics are computed over a sample of the data source, so they are
+ * estimations and they are not updated by the mutation methods.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class ColumnStatistics(val propertyName: String,
+                       val nullFraction: Double,
+                       val distinct: Long,
+                       val min: Any?,
+                       val max: Any?,
+                       private val boundaries: Array<Any>,
+                       private val comparator: Comparator<Any>) {
+
+    /**
+     * Estimated fraction of the rows equal to the value
+     */
+    fun eqSelectivity(value: Any?): Double {
+        if (value == null) return 0.0
+        if (min != null && (compare(value, min) < 0 || compare(value, max!!) > 0)) return 0.0
+
+        return (1.0 - nullFraction) / maxOf(1L, distinct)
+    }
+
+    /**
+     * Estimated fraction of the rows that comply with 'property operator value'
+     */
+    fun rangeSelectivity(value: Any, operator: CompareOperator): Double {
+        val notNull = 1.0 - nullFraction
+
+        return when (operator) {
+            CompareOperator.eq -> eqSelectivity(value)
+            CompareOperator.ne -> notNull - eqSelectivity(value)
+            CompareOperator.lt -> notNull * fractionBelow(value, false)
+            CompareOperator.le -> notNull * fractionBelow(value, true)
+            CompareOperator.gt -> notNull * (1.0 - fractionBelow(value, true))
+            CompareOperator.ge -> notNull * (1.0 - fractionBelow(value, false))
+        }
+    }
+
+    /**
+     * Estimated fraction of the rows between from (inclusive) and to (exclusive)
+     */
+    fun betweenSelectivity(from: Any, to: Any): Double =
+        maxOf(0.0, (1.0 - nullFraction) * (fractionBelow(to, false) - fractionBelow(from, false)))
+
+    /**
+     * Fraction of the non-null values lower than the value (or equal if inclusive)
+     */
+    private fun fractionBelow(value: Any, inclusive: Boolean): Double {
+        if (boundaries.isEmpty()) return 0.5
+
+        var low = 0
+        var high = boundaries.size
+
+        while (low < high) {
+            val mid = (low + high) ushr 1
+            val r = compare(boundaries[mid], value)
+
+            if (r < 0 || (inclusive && r == 0)) low = mid + 1 else high = mid
+        }
+
+        return low.toDouble() / boundaries.size
+    }
+
+    private fun compare(a: Any, b: Any): Int =
+        try {
+            comparator.compare(a, b)
+        } catch (e: RuntimeException) {
+            0       // filter value of another type, no estimation
+        }
+
+    override fun toString() =
+        "$propertyName: nulls=${"%.3f".format(nullFraction)} distinct=$distinct min=$min max=$max"
+
+    companion object {
+        const val SAMPLE_SIZE = 100_000
+        const val BUCKETS = 32
+
+        /**
+         * Statistics for all the filterable properties. The properties whose values
+         * cannot be compared are skipped.
+         */
+        fun <T : FilteredDTO<T>> of(rows: List<T>): Map<String, ColumnStatistics> {
+            if (rows.isEmpty()) return HashMap()
+
+            val step = maxOf(1, rows.size / SAMPLE_SIZE)
+            val sample = (rows.indices step step).map { rows[it] }
+            val res = HashMap<String, ColumnStatistics>()
+
+            PropertyAccessors.of(rows.first()).forEach { (name, accessor) ->
+                try {
+                    val comparator = ValueTypes.of(accessor.type).comparator
+                    val sketch = HyperLogLog()
+                    val values = ArrayList<Any>(sample.size)
+
+                    sample.forEach { row -> accessor.get(row)?.let { values.add(it); sketch.add(it) } }
+                    values.sortWith(comparator)
+
+                    val boundaries = if (values.isEmpty()) emptyArray()
+                                     else Array(BUCKETS + 1) { values[(it.toLong() * (values.size - 1) / BUCKETS).toInt()] }
+                    val sampleDistinct = minOf(sketch.estimate(), values.size.toLong())
+                    // almost all the sampled values are different: it is a key, scale it to all the rows
+                    val distinct = if (sampleDistinct > values.size * 0.9) sampleDistinct * rows.size / sample.size
+                                   else sampleDistinct
+
+                    res[name] = ColumnStatistics(name,
+                                                 1.0 - values.size.toDouble() / sample.size,
+                                                 distinct,
+                                                 values.firstOrNull(),
+                                                 values.lastOrNull(),
+                                                 boundaries,
+                                                 comparator)
+                } catch (e: RuntimeException) {
+                    // values that cannot be compared: no statistics for this property
+                }
+            }
+
+            return res
+        }
+    }
+}
+
+/**
+ * Distinct count sketch with 2^12 registers (around 1.6% of standard error)
+ */
+class HyperLogLog {
+    private val registers = ByteArray(M)
+
+    fun add(value: Any) {
+        val hash = mix(value.hashCode().toLong())
+        val index = (hash ushr (64 - P)).toInt()
+        val rank = (java.lang.Long.numberOfLeadingZeros((hash shl P) or (1L shl (P - 1))) + 1).toByte()
+
+        if (rank > registers[index]) registers[index] = rank
+    }
+
+    fun estimate(): Long {
+        var sum = 0.0
+        var zeros = 0
+
+        registers.forEach {
+            sum += 1.0 / (1L shl it.toInt())
+            if (it == 0.toByte()) zeros++
+        }
+
+        val estimate = ALPHA * M * M / sum
+
+        return if (estimate <= 2.5 * M && zeros > 0) Math.round(M * Math.log(M.toDouble() / zeros))
+               else Math.round(estimate)
+    }
+
+    companion object {
+        private const val P = 12
+        private const val M = 1 shl P
+        private val ALPHA = 0.7213 / (1 + 1.079 / M)
+
+        /**
+         * 64 bits finalizer of MurmurHash3, spreads the bits of hashCode()
+         */
+        private fun mix(value: Long): Long {
+            var h = value
+
+            h = h xor (h ushr 33)
+            h *= -0xae502812aa7333L
+            h = h xor (h ushr 33)
+            h *= -0x3b314601e57a13adL
+            h = h xor (h ushr 33)
+
+            return h
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  ColumnarInMemoryService.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import com.github.mvysny.vokdataloader.Filter
+import com.github.mvysny.vokdataloader.SortClause
+import com.ailegorreta.commons.dtomappers.FilteredDTO
+import com.ailegorreta.commons.dtomappers.PropertyAccessors
+import com.ailegorreta.commons.service.FilterChangeEvent
+import com.ailegorreta.commons.service.FilterChangeListener
+import com.ailegorreta.commons.service.ServiceWithFilter
+import com.ailegorreta.commons.utils.HasLogger
+import java.nio.file.Path
+
+/**
+ * Alternative to the InMemoryService for very large data sources. The data source
+ * is converted to a ColumnarStore when it is initialized and the DTOs are not kept
+ * in memory: filtering and sorting read the columns directly and only the rows of
+ * the requested page are materialized again as DTOs with the materialize() method.
+ *
+ *  note: only the properties declared in the filterProperties() method of the DTO
+ *  are stored, so all the properties needed by materialize() must be declared there.
+ *
+ *  Usage example:
+ *
+ *      class CompanyService: ColumnarInMemoryService<CompanyDTO>() {
+ *          override fun materialize(row: ColumnarRow) =
+ *              CompanyDTO(id = row["id"] as Long, nombre = row["nombre"] as String, ...)
+ *      }
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+abstract class ColumnarInMemoryService<T : FilteredDTO<T>>: ServiceWithFilter, HasLogger {
+
+    private var store: ColumnarStore<T>? = null
+    private var activeFilter: FilterKey? = null
+    private val listeners = ArrayList<FilterChangeListener>()
+    private val resultCache = object: LinkedHashMap<FilterKey, IntArray>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<FilterKey, IntArray>?) = size > filterCacheEntries()
+    }
+    private val sortCache = object: LinkedHashMap<Pair<FilterKey?, List<Pair<String, Boolean>>>, IntArray>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Pair<FilterKey?, List<Pair<String, Boolean>>>, IntArray>?) =
+            size > InMemoryService.SORT_CACHE_SIZE
+    }
+
+    /**
+     * The data source list is not referenced after this call, so it can be
+     * garbage collected by the caller.
+     */
+    @Synchronized
+    fun initDataSource(dataSource: List<T>) {
+        initStore(if (dataSource.isEmpty()) null
+                  else ColumnarStore(dataSource, PropertyAccessors.of(dataSource.first()), offHeapStrings()))
+    }
+
+    /**
+     * Warm restart: the data source is loaded from the snapshot file (see
+     * ColumnarSnapshotFile) if it exists and has the same version and the same schema
+     * of the prototype (any instance of the DTO, it is only used to read its
+     * filterProperties()). Otherwise, the loader is called and a new snapshot file is
+     * written for the next restart.
+     */
+    @Synchronized
+    fun initDataSource(snapshot: Path, version: Long, prototype: T, loader: () -> List<T>) {
+        val schema = ColumnarSnapshotFile.schemaOf(prototype)
+        val stored = ColumnarSnapshotFile.read<T>(snapshot, version, schema, offHeapStrings())
+
+        if (stored != null) {
+            initStore(stored)
+            return
+        }
+        initDataSource(loader())
+        store?.let {
+            try {
+                ColumnarSnapshotFile.write(it, snapshot, version, schema)
+            } catch (e: Exception) {
+                logger.warn("Snapshot $snapshot could not be written: ${e.message}")
+            }
+        }
+    }
+
+    private fun initStore(store: ColumnarStore<T>?) {
+        this.store = store
+        resultCache.clear()
+        sortCache.clear()
+        activeFilter = null
+    }
+
+    /**
+     * Creates the DTO for one row of the page
+     */
+    abstract fun materialize(row: ColumnarRow): T
+
+    /**
+     * Keeps the string dictionaries outside the Java heap
+     */
+    open fun offHeapStrings(): Boolean = false
+
+    /**
+     * Maximum number of filter results (row ids) kept in the cache
+     */
+    open fun filterCacheEntries(): Int = 8
+
+    @Synchronized
+    open fun fetch(filter: Filter<T>?, sortBy: List<SortClause>, range: LongRange): List<T> {
+        val store = this.store ?: return ArrayList()
+
+        if (range.isEmpty()) return ArrayList()
+
+        val key = filter?.let { FilterKey.of(it) }
+        val ids = if (filter != null) filtered(store, key!!, filter) else null
+        val size = ids?.size ?: store.size
+        val end = minOf(range.last.toInt() + 1, size)
+        val start = range.first.toInt()
+
+        if (start >= end) return ArrayList()
+
+        val order = if (sortBy.isEmpty()) null
+                    else sorted(store, key, ids, sortBy, end)
+
+        return (start until end).map { i ->
+            val position = order?.get(i) ?: i
+
+            materialize(store.row(ids?.get(position) ?: position))
+        }
+    }
+
+    /**
+     *  Returns the number of rows that complies with the query
+     */
+    @Synchronized
+    open fun getCount(filter: Filter<T>?): Long {
+        val store = this.store ?: return 0L
+
+        if (filter != null) {
+            val key = FilterKey.of(filter)
+
+            if (key != activeFilter) {
+                activeFilter = key
+                fireEvent(filter.toString())
+            }
+
+            return filtered(store, key, filter).size.toLong()
+        } else {
+            activeFilter = null
+            return store.size.toLong()
+        }
+    }
+
+    /**
+     * Row ids (sorted) of the filter result
+     */
+    private fun filtered(store: ColumnarStore<T>, key: FilterKey, filter: Filter<T>): IntArray =
+        resultCache[key] ?: run {
+            val predicate = store.compile(filter)
+            var res = IntArray(1024)
+            var count = 0
+
+            for (id in 0 until store.size)
+                if (predicate(id)) {
+                    if (count == res.size) res = res.copyOf(count * 2)
+                    res[count++] = id
+                }
+
+            res.copyOf(count).also { resultCache[key] = it }
+        }
+
+    /**
+     * Permutation of the filter result positions, using top-K or a full (cached)
+     * sort as the InMemoryService does.
+     */
+    private fun sorted(store: ColumnarStore<T>, key: FilterKey?, ids: IntArray?,
+                       sortBy: List<SortClause>, k: Int): IntArray {
+        val sortKey = Pair(key, sortBy.map { Pair(it.propertyName, it.asc) })
+
+        sortCache[sortKey]?.let { return it }
+
+        val size = ids?.size ?: store.size
+        val byRow = store.comparator(sortBy)
+        val comparator = if (ids == null) byRow
+                         else IntComparator { a, b -> byRow.compare(ids[a], ids[b]) }   // ids are ascending, ties keep the position order
+
+        return if (k.toLong() * InMemoryService.TOP_K_RATIO < size)
+                   RowSorter.topK(size, comparator, k)
+               else
+                   RowSorter.sort(size, comparator).also { sortCache[sortKey] = it }
+    }
+
+    /**
+     * For display purpose in the menu, show the  active filter
+     */
+    override fun addFilterChangeListener(listener: FilterChangeListener): FilterChangeListener {
+        listeners.add(listener)
+
+        return listener
+    }
+
+    private fun fireEvent(filter: String) {
+        listeners.forEach { it.filterChange(FilterChangeEvent(this, filter)) }
+    }
+}
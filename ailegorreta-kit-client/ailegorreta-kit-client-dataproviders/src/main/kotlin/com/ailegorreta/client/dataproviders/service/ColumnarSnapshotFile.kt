@@ -0,0 +1,379 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  ColumnarSnapshotFile.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import com.ailegorreta.commons.dtomappers.FilteredDTO
+import com.ailegorreta.commons.dtomappers.PropertyAccessors
+import com.ailegorreta.commons.utils.HasLogger
+import java.io.BufferedOutputStream
+import java.io.ByteArrayOutputStream
+import java.math.BigDecimal
+import java.math.BigInteger
+import java.io.DataOutputStream
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.time.*
+import java.util.*
+import java.util.zip.CRC32
+import java.util.zip.CheckedOutputStream
+
+/**
+ * Binary file with a ColumnarStore, so a restarted node can load its data source
+ * by memory mapping the file instead of downloading and parsing it again.
+ *
+ * The file has a header followed by the columns:
+ * - magic, format, data version, rows, columns, schema length, body length and the
+ *   CRC32 of the body.
+ * - the schema: name and declared type of each property of the DTO (see schemaOf).
+ * - for each column: name, kind, nulls and the values (primitive arrays, the string
+ *   dictionary with its codes, or the other values as text).
+ *
+ * The data version is defined by the caller (e.g., the last update timestamp of
+ * the source). read() returns null when the file does not exist, has another
+ * version, another schema (e.g., the DTO changed in a new deployment) or is
+ * corrupt, so the caller can do a normal load.
+ *
+ * note: a mapped buffer is limited to 2 GB, larger files are ignored.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+object ColumnarSnapshotFile: HasLogger {
+
+    private const val MAGIC = 0x41494C43        // "AILC"
+    private const val FORMAT = 2
+    private const val HEADER_SIZE = 4 + 4 + 8 + 4 + 4 + 4 + 8 + 8
+
+    private const val LONG_COLUMN: Byte = 1
+    private const val DOUBLE_COLUMN: Byte = 2
+    private const val STRING_COLUMN: Byte = 3
+    private const val OBJECT_COLUMN: Byte = 4
+
+    /**
+     * Writes the store to a temporary file that replaces the previous one atomically,
+     * so a reader never maps a half written file.
+     *
+     *  note: the values of an ObjectColumn are written with toString() (enums with
+     *  name()) and parsed back by its type, so an ObjectColumn can only have values of
+     *  one of the types of the parsers (or enums). Otherwise, an IllegalArgumentException
+     *  is thrown before the file is written.
+     */
+    fun write(store: ColumnarStore<*>, path: Path, version: Long, schema: Map<String, Class<*>>) {
+        store.columns.values.filterIsInstance<ObjectColumn>().forEach { objectType(it) }
+
+        val schemaBytes = schemaBytes(schema)
+        val tmp = Files.createTempFile(path.toAbsolutePath().parent, path.fileName.toString(), ".tmp")
+
+        try {
+            RandomAccessFile(tmp.toFile(), "rw").use { file ->
+                val crc = CRC32()
+                val body = file.channel.position((HEADER_SIZE + schemaBytes.size).toLong())
+                val counting = CountingOutputStream(Channels.newOutputStream(body))
+                val out = DataOutputStream(CheckedOutputStream(BufferedOutputStream(counting, 1 shl 16), crc))
+
+                store.columns.values.forEach { writeColumn(out, it, store.size) }
+                out.flush()
+                file.seek(0)
+                file.writeInt(MAGIC)
+                file.writeInt(FORMAT)
+                file.writeLong(version)
+                file.writeInt(store.size)
+                file.writeInt(store.columns.size)
+                file.writeInt(schemaBytes.size)
+                file.writeLong(counting.count)
+                file.writeLong(crc.value)
+                file.write(schemaBytes)
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        } finally {
+            Files.deleteIfExists(tmp)
+        }
+    }
+
+    /**
+     * Name and declared type of the filterable properties of the DTO, i.e. the columns
+     * of its ColumnarStore
+     */
+    fun <T : FilteredDTO<T>> schemaOf(dto: T): Map<String, Class<*>> =
+        PropertyAccessors.of(dto).mapValues { (_, accessor) -> accessor.type }
+
+    /**
+     * Maps the file and builds the store. The string dictionaries keep pointing to the
+     * mapped file when offHeapStrings is true.
+     */
+    fun <T> read(path: Path, version: Long, schema: Map<String, Class<*>>, offHeapStrings: Boolean = false): ColumnarStore<T>? {
+        if (!Files.exists(path)) return null
+
+        return try {
+            FileChannel.open(path, StandardOpenOption.READ).use { channel ->
+                if (channel.size() > Int.MAX_VALUE) {
+                    logger.warn("Snapshot $path is larger than 2 GB, it is ignored")
+                    return null
+                }
+
+                val buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+
+                if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT) {
+                    logger.warn("Snapshot $path is not a valid file, it is ignored")
+                    return null
+                }
+                if (buffer.getLong() != version) {
+                    logger.info("Snapshot $path is stale, it is ignored")
+                    return null
+                }
+
+                val rows = buffer.getInt()
+                val columns = buffer.getInt()
+                val schemaLength = buffer.getInt()
+                val length = buffer.getLong()
+                val checksum = buffer.getLong()
+
+                if (schemaLength < 0 || length != channel.size() - HEADER_SIZE - schemaLength ||
+                    checksum != crc(buffer.slice(HEADER_SIZE + schemaLength, length.toInt()))) {
+                    logger.warn("Snapshot $path is corrupt, it is ignored")
+                    return null
+                }
+                if (readSchema(buffer) != schema.mapValues { (_, type) -> type.name }) {
+                    logger.info("Snapshot $path has another schema, it is ignored")
+                    return null
+                }
+
+                val res = LinkedHashMap<String, Column>()
+
+                repeat(columns) { readColumn(buffer, rows, offHeapStrings).let { res[it.name] = it } }
+
+                ColumnarStore<T>(rows, res)
+            }
+        } catch (e: Exception) {
+            logger.warn("Snapshot $path could not be read: ${e.message}")
+            null
+        }
+    }
+
+    private fun crc(body: ByteBuffer): Long = CRC32().also { it.update(body) }.value
+
+    private fun schemaBytes(schema: Map<String, Class<*>>): ByteArray {
+        val bytes = ByteArrayOutputStream()
+
+        DataOutputStream(bytes).use { out ->
+            out.writeInt(schema.size)
+            schema.forEach { (name, type) ->
+                out.writeUTF(name)
+                out.writeUTF(type.name)
+            }
+        }
+
+        return bytes.toByteArray()
+    }
+
+    private fun readSchema(buffer: ByteBuffer): Map<String, String> {
+        val res = HashMap<String, String>()
+
+        repeat(buffer.getInt()) { res[readUTF(buffer)] = readUTF(buffer) }
+
+        return res
+    }
+
+    private fun writeColumn(out: DataOutputStream, column: Column, rows: Int) {
+        out.writeUTF(column.name)
+        when (column) {
+            is LongColumn -> {
+                out.writeByte(LONG_COLUMN.toInt())
+                writeNulls(out, column.nulls)
+                out.writeUTF(column.type.name)
+                column.values.forEach { out.writeLong(it) }
+            }
+            is DoubleColumn -> {
+                out.writeByte(DOUBLE_COLUMN.toInt())
+                writeNulls(out, column.nulls)
+                out.writeBoolean(column.float)
+                column.values.forEach { out.writeDouble(it) }
+            }
+            is StringColumn -> {
+                val dictionary = column.dictionary
+                val bytes = (0 until dictionary.size).map { dictionary[it].toByteArray(Charsets.UTF_8) }
+
+                out.writeByte(STRING_COLUMN.toInt())
+                writeNulls(out, column.nulls)
+                out.writeInt(dictionary.size)
+                var offset = 0
+                out.writeInt(offset)
+                bytes.forEach { offset += it.size; out.writeInt(offset) }
+                bytes.forEach { out.write(it) }
+                column.codes.forEach { out.writeInt(it) }
+            }
+            is ObjectColumn -> {
+                val type = objectType(column)
+
+                out.writeByte(OBJECT_COLUMN.toInt())
+                writeNulls(out, column.nulls)
+                out.writeUTF(type.name)
+                for (i in 0 until rows) {
+                    val value = column.values[i] ?: continue
+                    val bytes = (if (value is Enum<*>) value.name else value.toString()).toByteArray(Charsets.UTF_8)
+
+                    out.writeInt(bytes.size)
+                    out.write(bytes)
+                }
+            }
+            else -> throw IllegalArgumentException("Unsupported column ${column.javaClass}")
+        }
+    }
+
+    private fun writeNulls(out: DataOutputStream, nulls: BitSet) {
+        val words = nulls.toLongArray()
+
+        out.writeInt(words.size)
+        words.forEach { out.writeLong(it) }
+    }
+
+    private fun readColumn(buffer: ByteBuffer, rows: Int, offHeapStrings: Boolean): Column {
+        val name = readUTF(buffer)
+        val kind = buffer.get()
+        val nulls = BitSet.valueOf(LongArray(buffer.getInt()).also { buffer.asLongBuffer().get(it); skip(buffer, it.size * 8) })
+
+        return when (kind) {
+            LONG_COLUMN -> {
+                val type = Class.forName(readUTF(buffer))
+                val values = LongArray(rows).also { buffer.asLongBuffer().get(it); skip(buffer, rows * 8) }
+
+                LongColumn(name, nulls, values, type)
+            }
+            DOUBLE_COLUMN -> {
+                val float = buffer.get() != 0.toByte()
+                val values = DoubleArray(rows).also { buffer.asDoubleBuffer().get(it); skip(buffer, rows * 8) }
+
+                DoubleColumn(name, nulls, values, float)
+            }
+            STRING_COLUMN -> {
+                val size = buffer.getInt()
+                val offsets = IntArray(size + 1).also { buffer.asIntBuffer().get(it); skip(buffer, it.size * 4) }
+                val bytes = buffer.slice(buffer.position(), offsets[size])
+
+                skip(buffer, offsets[size])
+
+                val codes = IntArray(rows).also { buffer.asIntBuffer().get(it); skip(buffer, rows * 4) }
+                val dictionary = OffHeapStringDictionary(bytes, offsets)
+
+                StringColumn(name, nulls, codes,
+                             if (offHeapStrings) dictionary
+                             else HeapStringDictionary(Array(size) { dictionary[it] }))
+            }
+            OBJECT_COLUMN -> {
+                val type = Class.forName(readUTF(buffer))
+                val converter = parser(type)
+                val values = arrayOfNulls<Any>(rows)
+
+                for (i in 0 until rows)
+                    if (!nulls.get(i)) {
+                        val b = ByteArray(buffer.getInt())
+
+                        buffer.get(b)
+                        values[i] = converter(String(b, Charsets.UTF_8))
+                    }
+
+                ObjectColumn(name, nulls, values, type)
+            }
+            else -> throw IllegalStateException("Unknown column kind $kind")
+        }
+    }
+
+    /**
+     * Types of the ObjectColumn values that can be read back from their toString()
+     */
+    private val parsers: Map<Class<*>, (String) -> Any> = mapOf(
+        String::class.java to { it },
+        BigDecimal::class.java to { BigDecimal(it) },
+        BigInteger::class.java to { BigInteger(it) },
+        LocalDate::class.java to { LocalDate.parse(it) },
+        LocalDateTime::class.java to { LocalDateTime.parse(it) },
+        LocalTime::class.java to { LocalTime.parse(it) },
+        OffsetDateTime::class.java to { OffsetDateTime.parse(it) },
+        ZonedDateTime::class.java to { ZonedDateTime.parse(it) },
+        Instant::class.java to { Instant.parse(it) },
+        UUID::class.java to { UUID.fromString(it) }
+    )
+
+    @Suppress("UNCHECKED_CAST")
+    private fun parser(type: Class<*>): (String) -> Any =
+        parsers[type] ?: if (type.isEnum) { name -> java.lang.Enum.valueOf(type as Class<out Enum<*>>, name) }
+                         else throw IllegalArgumentException("Unsupported column type ${type.name}")
+
+    /**
+     * Type of all the values of the column, validated so they can be read back
+     */
+    private fun objectType(column: ObjectColumn): Class<*> {
+        var type: Class<*>? = null
+
+        column.values.forEach { value ->
+            val valueType = (if (value is Enum<*>) value.declaringJavaClass else value?.javaClass) ?: return@forEach
+
+            if (type == null) {
+                if (!parsers.containsKey(valueType) && !valueType.isEnum)
+                    throw IllegalArgumentException("Column ${column.name} of type ${valueType.name} cannot be written to a snapshot")
+                type = valueType
+            } else if (valueType != type)
+                throw IllegalArgumentException("Column ${column.name} has values of types ${type!!.name} and ${valueType.name}")
+        }
+
+        return type ?: String::class.java
+    }
+
+    /**
+     * Same format as DataOutputStream.writeUTF (for the ASCII names used here)
+     */
+    private fun readUTF(buffer: ByteBuffer): String {
+        val b = ByteArray(buffer.getShort().toInt() and 0xFFFF)
+
+        buffer.get(b)
+
+        return String(b, Charsets.UTF_8)
+    }
+
+    private fun skip(buffer: ByteBuffer, bytes: Int) {
+        buffer.position(buffer.position() + bytes)
+    }
+
+    private class CountingOutputStream(private val out: java.io.OutputStream): java.io.OutputStream() {
+        var count = 0L
+
+        override fun write(b: Int) {
+            out.write(b)
+            count++
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            out.write(b, off, len)
+            count += len
+        }
+
+        override fun flush() = out.flush()
+    }
+}
@@ -0,0 +1,460 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  ColumnarStore.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import com.ailegorreta.commons.dtomappers.PropertyAccessor
+import com.github.mvysny.vokdataloader.*
+import java.math.BigDecimal
+import java.nio.ByteBuffer
+import java.time.LocalDate
+import java.util.*
+
+typealias RowIdPredicate = (Int) -> Boolean
+
+/**
+ * Column oriented copy of a data source. Every filterable property is stored in
+ * one column of primitive values instead of one object per row:
+ * - Long, Int, Short, Byte, Boolean and LocalDate in a LongArray.
+ * - Double and Float in a DoubleArray.
+ * - String as an IntArray of codes of a sorted dictionary, so repeated values
+ *   (e.g. company names, status codes) are stored only once. The dictionary can
+ *   be kept off-heap.
+ * - Any other type in an object array.
+ *
+ * The filters are compiled to predicates over the row id that read the columns
+ * directly; string filters are solved once per dictionary entry and not per row.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class ColumnarStore<T> internal constructor(val size: Int, val columns: Map<String, Column>) {
+
+    constructor(rows: List<T>, accessors: Map<String, PropertyAccessor<T>>, offHeapStrings: Boolean = false):
+            this(rows.size, accessors.mapValues { (name, accessor) ->
+                                Column.build(name, rows.map { accessor.get(it) }, offHeapStrings)
+                            })
+
+    fun column(propertyName: String): Column =
+        columns[propertyName] ?: throw IllegalArgumentException("Property $propertyName not declare as filterable")
+
+    fun row(id: Int) = ColumnarRow(this, id)
+
+    fun compile(filter: Filter<*>): RowIdPredicate =
+        when (filter) {
+            is AndFilter<*> -> {
+                val all = filter.children.map { compile(it) }.toTypedArray()
+
+                ({ id: Int -> all.all { it(id) } })
+            }
+            is OrFilter<*> -> {
+                val any = filter.children.map { compile(it) }.toTypedArray()
+
+                ({ id: Int -> any.any { it(id) } })
+            }
+            is BeanFilter<*> -> column(filter.propertyName).compile(filter)
+            else -> throw IllegalArgumentException("Unsupported filter $filter")
+        }
+
+    fun comparator(sortBy: List<SortClause>): IntComparator {
+        val sortColumns = sortBy.map { column(it.propertyName) }
+
+        return IntComparator { a, b ->
+            for (i in sortColumns.indices) {
+                val column = sortColumns[i]
+                val nullA = column.isNull(a)
+                val nullB = column.isNull(b)
+                val r = when {
+                            nullA && nullB -> 0
+                            nullA -> -1
+                            nullB -> 1
+                            else -> column.compare(a, b)
+                        }
+
+                if (r != 0) return@IntComparator if (sortBy[i].asc) r else -r
+            }
+            a.compareTo(b)
+        }
+    }
+}
+
+/**
+ * One row of the store, used to materialize the DTO of the requested page.
+ */
+class ColumnarRow(private val store: ColumnarStore<*>, val id: Int) {
+    operator fun get(propertyName: String): Any? = store.column(propertyName).value(id)
+}
+
+abstract class Column(val name: String, val nulls: BitSet) {
+
+    fun isNull(row: Int) = nulls.get(row)
+
+    abstract fun value(row: Int): Any?
+
+    /**
+     * Compares two non-null rows
+     */
+    abstract fun compare(a: Int, b: Int): Int
+
+    abstract fun compile(filter: BeanFilter<*>): RowIdPredicate
+
+    protected fun nullFilter(filter: BeanFilter<*>): RowIdPredicate? =
+        when (filter) {
+            is IsNullFilter<*> -> ({ row: Int -> nulls.get(row) })
+            is IsNotNullFilter<*> -> ({ row: Int -> !nulls.get(row) })
+            else -> null
+        }
+
+    protected fun unsupported(filter: BeanFilter<*>): Nothing =
+        throw IllegalArgumentException("Unsupported filter $filter for property $name")
+
+    companion object {
+        fun build(name: String, values: List<Any?>, offHeapStrings: Boolean): Column {
+            val nulls = BitSet(values.size)
+
+            values.forEachIndexed { i, v -> if (v == null) nulls.set(i) }
+
+            return when (values.firstOrNull { it != null }) {
+                is Long, is Int, is Short, is Byte, is Boolean, is LocalDate -> {
+                    val sample = values.first { it != null }!!
+
+                    if (values.all { it == null || it.javaClass == sample.javaClass })
+                        LongColumn(name, nulls, LongArray(values.size) { LongColumn.encode(values[it]) }, sample.javaClass)
+                    else
+                        ObjectColumn(name, nulls, values.toTypedArray())
+                }
+                is Double, is Float -> {
+                    if (values.all { it == null || it is Double || it is Float })
+                        DoubleColumn(name, nulls, DoubleArray(values.size) { (values[it] as Number?)?.toDouble() ?: 0.0 },
+                                     values.first { it != null } is Float)
+                    else
+                        ObjectColumn(name, nulls, values.toTypedArray())
+                }
+                is String -> {
+                    if (values.all { it == null || it is String })
+                        StringColumn.build(name, nulls, values, offHeapStrings)
+                    else
+                        ObjectColumn(name, nulls, values.toTypedArray())
+                }
+                else -> ObjectColumn(name, nulls, values.toTypedArray())
+            }
+        }
+    }
+}
+
+class LongColumn(name: String, nulls: BitSet, internal val values: LongArray, internal val type: Class<*>): Column(name, nulls) {
+
+    override fun value(row: Int): Any? = if (nulls.get(row)) null else decode(values[row])
+
+    override fun compare(a: Int, b: Int) = values[a].compareTo(values[b])
+
+    override fun compile(filter: BeanFilter<*>): RowIdPredicate {
+        nullFilter(filter)?.let { return it }
+
+        return when (filter) {
+            is EqFilter<*> -> {
+                if (decimalOperand(filter.value) != null) return { _: Int -> false }   // no long is equal to it
+
+                val value = operand(filter.value) ?: return { _: Int -> false }
+
+                ({ row: Int -> !nulls.get(row) && values[row] == value })
+            }
+            is OpFilter<*> -> {
+                val operator = filter.operator
+                val decimal = decimalOperand(filter.value)
+
+                if (decimal != null)
+                    return { row: Int -> !nulls.get(row) && FilterCompiler.matches(values[row].toDouble().compareTo(decimal), operator) }
+
+                val value = operand(filter.value) ?: unsupported(filter)
+
+                ({ row: Int -> !nulls.get(row) && FilterCompiler.matches(values[row].compareTo(value), operator) })
+            }
+            else -> unsupported(filter)
+        }
+    }
+
+    /**
+     * A Double, Float or BigDecimal filter value that is not a long (e.g. 2.5) is compared
+     * as a double instead of being truncated
+     */
+    private fun decimalOperand(value: Any?): Double? =
+        when (value) {
+            is Double, is Float -> (value as Number).toDouble().takeIf { !isLong(it) }
+            is BigDecimal -> value.toDouble().takeIf { value.stripTrailingZeros().scale() > 0 || !isLong(it) }
+            else -> null
+        }
+
+    private fun isLong(value: Double) = value == Math.floor(value) && Math.abs(value) < LONG_RANGE
+
+    private fun operand(value: Any?): Long? =
+        when (value) {
+            null -> null
+            is Number -> value.toLong()
+            is Boolean, is LocalDate -> encode(value)
+            else -> null
+        }
+
+    private fun decode(value: Long): Any =
+        when (type) {
+            Int::class.javaObjectType -> value.toInt()
+            Short::class.javaObjectType -> value.toInt().toShort()
+            Byte::class.javaObjectType -> value.toInt().toByte()
+            Boolean::class.javaObjectType -> value != 0L
+            LocalDate::class.java -> LocalDate.ofEpochDay(value)
+            else -> value
+        }
+
+    companion object {
+        private const val LONG_RANGE = 9.223372036854775807E18      // 2^63
+
+        fun encode(value: Any?): Long =
+            when (value) {
+                null -> 0L
+                is Number -> value.toLong()
+                is Boolean -> if (value) 1L else 0L
+                is LocalDate -> value.toEpochDay()
+                else -> throw IllegalArgumentException("Illegal conversion supported: from ${value::class} to Long")
+            }
+    }
+}
+
+class DoubleColumn(name: String, nulls: BitSet, internal val values: DoubleArray, internal val float: Boolean): Column(name, nulls) {
+
+    override fun value(row: Int): Any? =
+        if (nulls.get(row)) null else if (float) values[row].toFloat() else values[row]
+
+    override fun compare(a: Int, b: Int) = values[a].compareTo(values[b])
+
+    override fun compile(filter: BeanFilter<*>): RowIdPredicate {
+        nullFilter(filter)?.let { return it }
+
+        return when (filter) {
+            is EqFilter<*> -> {
+                val value = (filter.value as? Number)?.toDouble() ?: return { _: Int -> false }
+
+                ({ row: Int -> !nulls.get(row) && values[row] == value })
+            }
+            is OpFilter<*> -> {
+                val value = (filter.value as? Number)?.toDouble() ?: unsupported(filter)
+                val operator = filter.operator
+
+                ({ row: Int -> !nulls.get(row) && FilterCompiler.matches(values[row].compareTo(value), operator) })
+            }
+            else -> unsupported(filter)
+        }
+    }
+}
+
+class StringColumn(name: String, nulls: BitSet, internal val codes: IntArray,
+                   internal val dictionary: StringDictionary): Column(name, nulls) {
+
+    override fun value(row: Int): Any? = if (nulls.get(row)) null else dictionary[codes[row]]
+
+    /**
+     * The dictionary is sorted, so comparing the codes is the same as comparing the strings
+     */
+    override fun compare(a: Int, b: Int) = codes[a].compareTo(codes[b])
+
+    override fun compile(filter: BeanFilter<*>): RowIdPredicate {
+        nullFilter(filter)?.let { return it }
+
+        return when (filter) {
+            is EqFilter<*> -> {
+                val code = dictionary.find(filter.value as? String ?: return { _: Int -> false })
+
+                if (code < 0) ({ _: Int -> false })
+                else ({ row: Int -> !nulls.get(row) && codes[row] == code })
+            }
+            is OpFilter<*> -> {
+                val value = filter.value as? String ?: unsupported(filter)
+                val code = dictionary.find(value)
+                val insertion = if (code >= 0) code else -code - 1
+                val operator = filter.operator
+
+                ({ row: Int ->
+                    !nulls.get(row) && FilterCompiler.matches(if (code >= 0) codes[row].compareTo(code)
+                                                              else if (codes[row] < insertion) -1 else 1, operator)
+                })
+            }
+            is StartsWithFilter<*> -> {
+                val prefix = filter.value.dropLast(1)
+
+                if (filter.ignoreCase)
+                    byDictionary { it.startsWith(prefix, true) }
+                else {
+                    val from = dictionary.lowerBound(prefix)
+                    val to = dictionary.prefixEnd(prefix, from)
+
+                    ({ row: Int -> !nulls.get(row) && codes[row] >= from && codes[row] < to })
+                }
+            }
+            is FullTextFilter<*> -> {
+                val words = TextIndex.words(filter.value as? String ?: "")
+
+                byDictionary { value -> TextIndex.normalize(value).let { text -> words.all { text.contains(it) } } }
+            }
+            else -> unsupported(filter)
+        }
+    }
+
+    /**
+     * The condition is evaluated once for each distinct value and not for every row
+     */
+    private fun byDictionary(condition: (String) -> Boolean): RowIdPredicate {
+        val matches = BooleanArray(dictionary.size) { condition(dictionary[it]) }
+
+        return { row: Int -> !nulls.get(row) && matches[codes[row]] }
+    }
+
+    companion object {
+        fun build(name: String, nulls: BitSet, values: List<Any?>, offHeap: Boolean): StringColumn {
+            val distinct = values.filterIsInstance<String>().toSortedSet().toTypedArray()
+            val codes = IntArray(values.size) { i -> (values[i] as String?)?.let { Arrays.binarySearch(distinct, it) } ?: 0 }
+
+            return StringColumn(name, nulls, codes,
+                                if (offHeap) OffHeapStringDictionary.of(distinct) else HeapStringDictionary(distinct))
+        }
+    }
+}
+
+/**
+ * Values of any other type. They are compared and the filter values converted with the
+ * ValueType of its type (the class of the values, or the dynamic one if they have
+ * several classes), the same as InMemoryService does.
+ */
+class ObjectColumn(name: String, nulls: BitSet, internal val values: Array<Any?>,
+                   valueClass: Class<*> = typeOf(values)): Column(name, nulls) {
+
+    private val comparator = ValueTypes.of(valueClass).comparator
+    private val compiler = FilterCompiler(mapOf(name to object: PropertyAccessor<Int> {
+                                            override val name: String = this@ObjectColumn.name
+                                            override val type: Class<*> = valueClass
+                                            override fun get(dto: Int): Any? = values[dto]
+                                        }))
+
+    override fun value(row: Int): Any? = values[row]
+
+    override fun compare(a: Int, b: Int) = comparator.compare(values[a]!!, values[b]!!)
+
+    override fun compile(filter: BeanFilter<*>): RowIdPredicate = compiler.compile(filter)
+
+    companion object {
+        /**
+         * The class of all the non-null values (the enum class for enums), otherwise Any
+         */
+        fun typeOf(values: Array<Any?>): Class<*> {
+            var res: Class<*>? = null
+
+            values.forEach { value ->
+                val type = (if (value is Enum<*>) value.declaringJavaClass else value?.javaClass) ?: return@forEach
+
+                if (res == null) res = type else if (res != type) return Any::class.java
+            }
+
+            return res ?: Any::class.java
+        }
+    }
+}
+
+/**
+ * Sorted distinct strings of a column
+ */
+abstract class StringDictionary {
+    abstract val size: Int
+
+    abstract operator fun get(code: Int): String
+
+    /**
+     * Code of the value, or (-(insertion point) - 1) if it is not in the dictionary
+     */
+    fun find(value: String): Int {
+        var low = 0
+        var high = size - 1
+
+        while (low <= high) {
+            val mid = (low + high) ushr 1
+            val r = get(mid).compareTo(value)
+
+            if (r < 0) low = mid + 1 else if (r > 0) high = mid - 1 else return mid
+        }
+
+        return -(low + 1)
+    }
+
+    fun lowerBound(value: String): Int = find(value).let { if (it >= 0) it else -it - 1 }
+
+    fun prefixEnd(prefix: String, from: Int): Int {
+        var low = from
+        var high = size
+
+        while (low < high) {
+            val mid = (low + high) ushr 1
+
+            if (get(mid).startsWith(prefix)) low = mid + 1 else high = mid
+        }
+
+        return low
+    }
+}
+
+class HeapStringDictionary(private val values: Array<String>): StringDictionary() {
+    override val size: Int
+        get() = values.size
+
+    override fun get(code: Int) = values[code]
+}
+
+/**
+ * Dictionary stored in a direct (or memory mapped) buffer as UTF-8 outside the Java
+ * heap. The strings are decoded when they are read, that happens only once per
+ * distinct value when the filters are compiled and for the rows of the returned page.
+ */
+class OffHeapStringDictionary(private val buffer: ByteBuffer, private val offsets: IntArray): StringDictionary() {
+
+    companion object {
+        fun of(values: Array<String>): OffHeapStringDictionary {
+            val offsets = IntArray(values.size + 1)
+            val bytes = values.map { it.toByteArray(Charsets.UTF_8) }
+
+            bytes.forEachIndexed { i, b -> offsets[i + 1] = offsets[i] + b.size }
+
+            val buffer = ByteBuffer.allocateDirect(offsets[values.size])
+
+            bytes.forEach { buffer.put(it) }
+
+            return OffHeapStringDictionary(buffer, offsets)
+        }
+    }
+
+    override val size: Int
+        get() = offsets.size - 1
+
+    override fun get(code: Int): String {
+        val b = ByteArray(offsets[code + 1] - offsets[code])
+
+        buffer.get(offsets[code], b)
+
+        return String(b, Charsets.UTF_8)
+    }
+}
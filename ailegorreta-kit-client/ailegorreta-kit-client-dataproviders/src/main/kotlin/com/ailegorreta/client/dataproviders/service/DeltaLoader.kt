@@ -0,0 +1,200 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  DeltaLoader.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import com.ailegorreta.client.dataproviders.exceptions.WebClientException
+import com.ailegorreta.commons.dtomappers.FilteredDTO
+import com.ailegorreta.commons.utils.HasLogger
+import org.springframework.web.reactive.function.client.WebClient
+import org.springframework.web.util.UriBuilder
+import reactor.core.Disposable
+import reactor.core.publisher.Flux
+import reactor.core.publisher.Mono
+import java.time.Duration
+import java.time.Instant
+
+/**
+ * Source of the rows for a DeltaLoader. With updatedSince == null it returns all
+ * the rows, otherwise only the rows created, updated or deleted after that instant.
+ */
+fun interface DeltaSource<T> {
+    fun fetch(updatedSince: Instant?): Flux<T>
+}
+
+/**
+ * DeltaSource for a REST service, the rows are decoded one by one as they arrive
+ * instead of buffering the whole JSON array:
+ * - pageSize == null: the uri returns a JSON array (or a stream of JSON objects).
+ * - otherwise the uri is requested page by page (page and size parameters, as in
+ *   Spring Data) until a page has less than pageSize rows.
+ *
+ * The updatedSince parameter is sent only in the refreshes, in ISO-8601 format.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class WebClientDeltaSource<T>(private val webClient: WebClient,
+                              private val uri: String,
+                              private val type: Class<T>,
+                              private val pageSize: Int? = null,
+                              private val updatedSinceParam: String = "updatedSince"): DeltaSource<T> {
+
+    override fun fetch(updatedSince: Instant?): Flux<T> =
+        if (pageSize == null)
+            request(updatedSince) { it }
+        else
+            page(updatedSince, 0).expand { (n, rows) -> if (rows.size < pageSize) Mono.empty() else page(updatedSince, n + 1) }
+                                 .concatMapIterable { it.second }
+
+    private fun page(updatedSince: Instant?, n: Int): Mono<Pair<Int, List<T>>> =
+        request(updatedSince) { it.queryParam("page", n).queryParam("size", pageSize) }
+            .collectList()
+            .map { Pair(n, it) }
+
+    private fun request(updatedSince: Instant?, params: (UriBuilder) -> UriBuilder): Flux<T> =
+        webClient.get()
+                 .uri { builder ->
+                     val res = params(builder.path(uri))
+
+                     (if (updatedSince != null) res.queryParam(updatedSinceParam, updatedSince.toString()) else res).build()
+                 }
+                 .retrieve()
+                 .onStatus({ it.isError }) { response ->
+                     Mono.just(WebClientException(response.statusCode().value(), "Error reading $uri"))
+                 }
+                 .bodyToFlux(type)
+}
+
+/**
+ * Feeds an InMemoryService from a DeltaSource without holding the whole source in
+ * memory as one response:
+ * - load(): the first batch initializes the service, so the views can show the first
+ *   page while the rest of the rows arrive. These rows are accumulated (no indexes are
+ *   maintained and no item events are fired for them) and at the end the service is
+ *   initialized once with all the rows with initDataSourceAsync, which notifies the
+ *   FilterChangeListeners.
+ * - refresh(): requests only the rows changed since the last successful load or
+ *   refresh and applies them with upsertAll; the rows where isDeleted is true are
+ *   removed.
+ * - start(period): load and then refresh periodically until the Disposable is disposed.
+ *   A failed refresh is logged and the next one requests the same interval again.
+ *
+ * The instant sent as updatedSince (lastSync) is a watermark of the server: the
+ * greatest updatedAt of the rows received, so it does not depend on the clock of
+ * this node. The server should return the rows with updatedAt >= updatedSince, a
+ * row received again is just upserted again.
+ *
+ *  note: the service must use idOf() to return the id of the DTO, so a changed row
+ *  replaces the previous one.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class DeltaLoader<T : FilteredDTO<T>>(private val service: InMemoryService<T>,
+                                      private val source: DeltaSource<T>,
+                                      private val updatedAt: (T) -> Instant?,
+                                      private val batchSize: Int = 1_000,
+                                      private val isDeleted: (T) -> Boolean = { false }): HasLogger {
+
+    @Volatile
+    var lastSync: Instant? = null
+        private set
+
+    fun load(): Mono<Void> {
+        val rows = LinkedHashMap<Any, T>()
+        var batches = 0
+        var watermark: Instant? = null
+
+        return source.fetch(null)
+                     .buffer(batchSize)
+                     .doOnNext { batch ->
+                         watermark = watermark(watermark, batch)
+                         batch.forEach { row ->
+                             val id = service.idOf(row) ?: row
+
+                             if (isDeleted(row)) rows.remove(id) else rows[id] = row
+                         }
+                         if (batches++ == 0) service.initDataSource(ArrayList(rows.values))
+                     }
+                     .then(Mono.defer {
+                         lastSync = watermark ?: Instant.EPOCH      // no rows: the next refresh requests all of them
+                         when (batches) {
+                             0 -> Mono.fromRunnable<Void> { service.initDataSource(ArrayList()) }
+                             1 -> Mono.empty()
+                             else -> Mono.fromFuture(service.initDataSourceAsync(ArrayList(rows.values)))
+                         }
+                     })
+                     .then()
+    }
+
+    fun refresh(): Mono<Void> {
+        val since = lastSync ?: return load()
+        var watermark: Instant = since
+        var rows = 0
+
+        return source.fetch(since)
+                     .buffer(batchSize)
+                     .doOnNext { batch ->
+                         apply(batch)
+                         watermark = watermark(watermark, batch)!!
+                         rows += batch.size
+                     }
+                     .then(Mono.fromRunnable<Void> {
+                         lastSync = watermark
+                         logger.debug("Refreshed $rows rows of ${service.javaClass.simpleName} changed since $since")
+                     })
+    }
+
+    fun start(period: Duration): Disposable =
+        load().onErrorResume { e ->
+                  logger.error("Initial load of ${service.javaClass.simpleName} failed: ${e.message}")
+                  Mono.empty()
+              }
+              .thenMany(Flux.interval(period))
+              .concatMap {
+                  refresh().onErrorResume { e ->
+                      logger.warn("Refresh of ${service.javaClass.simpleName} failed: ${e.message}")
+                      Mono.empty()
+                  }
+              }
+              .subscribe()
+
+    /**
+     * The greatest updatedAt of the rows and the previous watermark
+     */
+    private fun watermark(previous: Instant?, batch: List<T>): Instant? =
+        batch.fold(previous) { res, row ->
+            val instant = updatedAt(row)
+
+            if (instant != null && (res == null || instant > res)) instant else res
+        }
+
+    private fun apply(batch: List<T>) {
+        val (deleted, changed) = batch.partition(isDeleted)
+
+        if (changed.isNotEmpty()) service.upsertAll(changed)
+        deleted.forEach { service.remove(it) }
+    }
+}
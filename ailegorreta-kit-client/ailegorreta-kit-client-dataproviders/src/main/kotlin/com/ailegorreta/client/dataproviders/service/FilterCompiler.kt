@@ -0,0 +1,196 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  FilterCompiler.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import com.ailegorreta.commons.dtomappers.PropertyAccessor
+import com.github.mvysny.vokdataloader.*
+
+typealias RowPredicate<T> = (T) -> Boolean
+
+/**
+ * Compiles a VoK filter tree into a single predicate, so the filter is evaluated
+ * in one pass over the data source without intermediate lists. AND and OR
+ * filters short-circuit, and the filter values are converted to the property
+ * type (see ValueTypes) only once and not for every row.
+ *
+ * The EqFilter matches the values that compare equal to its value with the comparator
+ * of the property type (e.g., 1.0 and 1.00 for BigDecimal), the same as the indexes
+ * and the FilterSubsumption.
+ *
+ * note: StartsWithFilter with ignoreCase = true is the ILIKE filter and the
+ *       FullTextFilter matches the rows that contain all the words of the query
+ *       (case and accents are ignored).
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class FilterCompiler<T>(private val accessors: Map<String, PropertyAccessor<T>>) {
+
+    fun compile(filter: Filter<*>): RowPredicate<T> =
+        when (filter) {
+            is AndFilter<*> -> and(filter.children.map { compile(it) })
+            is OrFilter<*> -> or(filter.children.map { compile(it) })
+            is BeanFilter<*> -> compileBean(filter)
+            else -> throw IllegalArgumentException("Unsupported filter $filter")
+        }
+
+    /**
+     * AND of already compiled predicates (also used for the conjuncts not solved by an index)
+     */
+    fun and(predicates: List<RowPredicate<T>>): RowPredicate<T> =
+        when (predicates.size) {
+            0 -> ({ _: T -> true })
+            1 -> predicates[0]
+            2 -> {
+                val p1 = predicates[0]
+                val p2 = predicates[1]
+
+                ({ row: T -> p1(row) && p2(row) })
+            }
+            else -> {
+                val all = predicates.toTypedArray()
+
+                ({ row: T -> all.all { it(row) } })
+            }
+        }
+
+    fun or(predicates: List<RowPredicate<T>>): RowPredicate<T> =
+        when (predicates.size) {
+            0 -> ({ _: T -> false })
+            1 -> predicates[0]
+            else -> {
+                val any = predicates.toTypedArray()
+
+                ({ row: T -> any.any { it(row) } })
+            }
+        }
+
+    private fun compileBean(filter: BeanFilter<*>): RowPredicate<T> {
+        val propName = filter.propertyName
+        val prop = accessors[propName]
+                ?: throw IllegalArgumentException("Property $propName not declare as filterable")
+        val type = ValueTypes.of(prop.type)
+
+        return when (filter) {
+            is EqFilter<*> -> {
+                val value = filter.value
+
+                if (value == null)
+                    ({ row: T -> prop.get(row) == null })
+                else if (type === ValueTypes.dynamic)
+                    compare(prop, value, CompareOperator.eq)
+                else
+                    convert(type, value)?.let { compare(prop, type.comparator, it, CompareOperator.eq) } ?: ({ _: T -> false })
+            }
+            is IsNotNullFilter<*> -> ({ row: T -> prop.get(row) != null })
+            is IsNullFilter<*> -> ({ row: T -> prop.get(row) == null })
+            is StartsWithFilter<*> -> {
+                val prefix = filter.value.dropLast(1)
+                val ignoreCase = filter.ignoreCase
+
+                ({ row: T -> (prop.get(row) as? String)?.startsWith(prefix, ignoreCase) ?: false })
+            }
+            is OpFilter<*> ->
+                if (type === ValueTypes.dynamic)
+                    compare(prop, filter.value, filter.operator)
+                else
+                    compare(prop, type.comparator, type.converter(filter.value), filter.operator)
+            is FullTextFilter<*> -> {
+                val words = TextIndex.words(filter.value as? String ?: "")
+
+                ({ row: T ->
+                    val value = prop.get(row)
+
+                    value is String && TextIndex.normalize(value).let { text -> words.all { text.contains(it) } }
+                })
+            }
+            else -> throw IllegalArgumentException("Unsupported filter $filter")
+        }
+    }
+
+    private fun compare(prop: PropertyAccessor<T>, comparator: Comparator<Any>, operand: Any,
+                        operator: CompareOperator): RowPredicate<T> =
+        { row: T ->
+            val value = prop.get(row)
+
+            value != null && matches(comparator.compare(value, operand), operator)
+        }
+
+    /**
+     * The type of the property is unknown, the operand is converted to the class of the values
+     */
+    private fun compare(prop: PropertyAccessor<T>, filterValue: Any, operator: CompareOperator): RowPredicate<T> {
+        val operand = Operand(filterValue)
+
+        return { row: T ->
+            val value = prop.get(row)
+
+            value != null && matches(InMemoryService.compareValues(value, operand.of(value)), operator)
+        }
+    }
+
+    /**
+     * An Eq value that cannot be converted to the property type does not match any row
+     */
+    private fun convert(type: ValueType, value: Any): Any? =
+        try {
+            type.converter(value)
+        } catch (e: RuntimeException) {
+            null
+        }
+
+    /**
+     * Filter value converted to the type of the property, used when the type of
+     * the property is unknown. The conversion is done when the first row is read and kept while the rows have the same class.
+     */
+    private class Operand(private val value: Any) {
+        @Volatile
+        private var converted: Pair<Class<*>, Any>? = null
+
+        fun of(row: Any): Any {
+            val current = converted
+
+            if (current != null && current.first == row.javaClass)
+                return current.second
+
+            val res = InMemoryService.convert(value, row::class)
+
+            converted = Pair(row.javaClass, res)
+
+            return res
+        }
+    }
+
+    companion object {
+        fun matches(r: Int, operator: CompareOperator) =
+            when (operator) {
+                CompareOperator.eq -> r == 0
+                CompareOperator.ne -> r != 0
+                CompareOperator.ge -> r >= 0
+                CompareOperator.gt -> r > 0
+                CompareOperator.le -> r <= 0
+                CompareOperator.lt -> r < 0
+            }
+    }
+}
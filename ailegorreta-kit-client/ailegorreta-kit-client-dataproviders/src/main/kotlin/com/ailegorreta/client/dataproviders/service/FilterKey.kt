@@ -0,0 +1,81 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  FilterKey.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import com.github.mvysny.vokdataloader.*
+
+/**
+ * Normalized version of a VoK filter tree, used as the key for the filter
+ * result cache. The normalization flattens nested AND (and OR) filters, keeps
+ * the children as a set so the order in which they were declared does not
+ * matter and removes single child nodes.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+sealed class FilterKey {
+
+    /**
+     * Filter over one property, e.g. EqFilter, OpFilter, StartsWithFilter.
+     */
+    data class Leaf(val kind: String, val propertyName: String, val value: Any?): FilterKey()
+
+    data class And(val children: Set<FilterKey>): FilterKey()
+
+    data class Or(val children: Set<FilterKey>): FilterKey()
+
+    /**
+     * Any other filter is compared by its description.
+     */
+    data class Other(val description: String): FilterKey()
+
+    companion object {
+        fun of(filter: Filter<*>): FilterKey =
+            when (filter) {
+                is AndFilter<*> -> and(filter.children.map { of(it) })
+                is OrFilter<*> -> or(filter.children.map { of(it) })
+                is OpFilter<*> -> Leaf("op:${filter.operator}", filter.propertyName, filter.value)
+                is StartsWithFilter<*> -> Leaf(if (filter.ignoreCase) "StartsWithFilter:ignoreCase" else "StartsWithFilter",
+                                               filter.propertyName, filter.value)
+                is BeanFilter<*> -> Leaf(filter.javaClass.simpleName, filter.propertyName, filter.value)
+                else -> Other(filter.toString())
+            }
+
+        private fun and(children: List<FilterKey>): FilterKey {
+            val flat = HashSet<FilterKey>()
+
+            children.forEach { if (it is And) flat.addAll(it.children) else flat.add(it) }
+
+            return if (flat.size == 1) flat.first() else And(flat)
+        }
+
+        private fun or(children: List<FilterKey>): FilterKey {
+            val flat = HashSet<FilterKey>()
+
+            children.forEach { if (it is Or) flat.addAll(it.children) else flat.add(it) }
+
+            return if (flat.size == 1) flat.first() else Or(flat)
+        }
+    }
+}
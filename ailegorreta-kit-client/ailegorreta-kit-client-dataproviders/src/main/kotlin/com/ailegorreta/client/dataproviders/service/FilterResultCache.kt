@@ -0,0 +1,201 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  FilterResultCache.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import com.github.mvysny.vokdataloader.Filter
+import java.util.*
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * LRU cache for the filter results of the InMemoryService. It is bounded by the
+ * number of entries and by the total number of rows held by all the entries, so
+ * a few broad filters do not keep a large part of the data source in memory.
+ *
+ * The most recent entry is never evicted, even if it alone exceeds the rows limit.
+ *
+ * Each entry keeps the filter and a mutable copy of its result, so the entries
+ * can be updated in place when a row of the data source changes (see update()).
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class FilterResultCache<T>(private val maxEntries: Int, private val maxRows: Long) {
+
+    private val entries = LinkedHashMap<FilterKey, FilterCacheEntry<T>>(16, 0.75f, true)
+    private var rows = 0L
+    private val hits = AtomicLong()
+    private val misses = AtomicLong()
+
+    @Synchronized
+    fun get(key: FilterKey): List<T>? = entry(key)?.rows
+
+    @Synchronized
+    fun entry(key: FilterKey): FilterCacheEntry<T>? {
+        val res = entries[key]
+
+        if (res == null) misses.incrementAndGet() else hits.incrementAndGet()
+
+        return res
+    }
+
+    /**
+     * The result is owned by the cache from now on (it is not copied if it is an ArrayList)
+     */
+    @Synchronized
+    fun put(key: FilterKey, filter: Filter<*>, result: List<T>): FilterCacheEntry<T> {
+        val owned = if (result is ArrayList<T>) result else ArrayList(result)
+        val entry = FilterCacheEntry(filter, owned)
+        val previous = entries.put(key, entry)
+
+        if (previous != null) rows -= previous.rows.size
+        rows += result.size
+        evict()
+
+        return entry
+    }
+
+    /**
+     * The entry with less rows whose filter is broader than the filter (see
+     * FilterSubsumption), or null if there is none
+     */
+    @Synchronized
+    fun broader(filter: Filter<*>): FilterCacheEntry<T>? =
+        entries.values.filter { FilterSubsumption.subsumes(it.filter, filter) }
+                      .minByOrNull { it.rows.size }
+
+    /**
+     * Applies the action to every entry. The action returns the change in the
+     * number of rows of the entry, so the rows limit is still honored.
+     */
+    @Synchronized
+    fun update(action: (FilterCacheEntry<T>) -> Int) {
+        entries.values.forEach {
+            rows += action(it)
+            it.aggregates.clear()
+            it.dictionaries.clear()
+            it.permutations.clear()
+        }
+        evict()
+    }
+
+    private fun evict() {
+        val it = entries.entries.iterator()
+
+        while (entries.size > 1 && (entries.size > maxEntries || rows > maxRows)) {
+            val eldest = it.next()
+
+            rows -= eldest.value.rows.size
+            it.remove()
+        }
+    }
+
+    @Synchronized
+    fun invalidate() {
+        entries.clear()
+        rows = 0L
+    }
+
+    @Synchronized
+    fun stats() = FilterCacheStats(hits.get(), misses.get(), entries.size, rows)
+}
+
+/**
+ * Cached filter result. The compiled predicate of the whole filter is created
+ * only when the entry has to be updated. The aggregates, the value dictionaries and
+ * the sort permutations computed over the result are kept with it and discarded
+ * when the result changes, so they never outlive the rows (and its order) they
+ * were computed from.
+ *
+ * The rows must be changed with add, set and removeAt. The position of each row is
+ * kept in an identity map (created on the first change), so a mutation of the data
+ * source finds its row in constant time.
+ */
+class FilterCacheEntry<T>(val filter: Filter<*>, val rows: ArrayList<T>) {
+    var predicate: RowPredicate<T>? = null
+    val aggregates = HashMap<AggregateKey, AggregateResult>()
+    val dictionaries = HashMap<String, ValueDictionary>()
+    val permutations = SortPermutations()
+    private var slots: IdentityHashMap<T, Int>? = null
+
+    fun indexOf(row: T): Int = slots()[row] ?: -1
+
+    fun add(row: T) {
+        rows.add(row)
+        slots?.put(row, rows.size - 1)
+    }
+
+    fun set(i: Int, row: T) {
+        slots?.remove(rows[i])
+        rows[i] = row
+        slots?.put(row, i)
+    }
+
+    /**
+     * The last row takes the position of the removed one
+     */
+    fun removeAt(i: Int) {
+        val lastPosition = rows.size - 1
+        val removed = rows[i]
+
+        rows[i] = rows[lastPosition]
+        rows.removeAt(lastPosition)
+        slots?.remove(removed)
+        if (i != lastPosition) slots?.put(rows[i], i)
+    }
+
+    private fun slots(): IdentityHashMap<T, Int> =
+        slots ?: IdentityHashMap<T, Int>(rows.size * 2).also { map ->
+            rows.forEachIndexed { i, row -> map[row] = i }
+            slots = map
+        }
+}
+
+/**
+ * The last sort permutations computed over a list of rows, by sort clauses. They are
+ * positions in the list, so they must be cleared whenever the list changes.
+ */
+class SortPermutations {
+    private val permutations = object: LinkedHashMap<List<Pair<String, Boolean>>, IntArray>(8, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<List<Pair<String, Boolean>>, IntArray>?) =
+            size > InMemoryService.SORT_CACHE_SIZE
+    }
+
+    operator fun get(sortBy: List<Pair<String, Boolean>>): IntArray? = permutations[sortBy]
+
+    operator fun set(sortBy: List<Pair<String, Boolean>>, permutation: IntArray) {
+        permutations[sortBy] = permutation
+    }
+
+    fun clear() = permutations.clear()
+}
+
+data class AggregateKey(val groupBy: String?, val aggregations: List<Aggregation>)
+
+/**
+ * Snapshot of the filter result cache counters
+ */
+data class FilterCacheStats(val hits: Long, val misses: Long, val entries: Int, val rows: Long) {
+    val hitRatio: Double
+        get() = if (hits + misses == 0L) 0.0 else hits.toDouble() / (hits + misses)
+}
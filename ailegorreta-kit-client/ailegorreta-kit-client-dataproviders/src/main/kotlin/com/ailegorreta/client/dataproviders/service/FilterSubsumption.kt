@@ -0,0 +1,119 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  FilterSubsumption.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import com.github.mvysny.vokdataloader.*
+
+/**
+ * Decides if a filter is narrower than another one, i.e., every row that complies
+ * with the narrower filter also complies with the broader one. Then the narrower
+ * filter can be evaluated only over the (cached) result of the broader one, e.g.
+ * while the user types in a type-ahead field.
+ *
+ * A filter is narrower when each conjunct of the broader filter is implied by some
+ * conjunct of it:
+ * - the same filter (an added AND conjunct is narrower).
+ * - StartsWithFilter with a longer prefix ("garc%" implies "gar%").
+ * - FullTextFilter whose words contain the broader words ("garcia" implies "gar").
+ * - OpFilter or EqFilter within the broader range ("> 20" implies ">= 10").
+ * - any EqFilter, OpFilter or text filter implies IsNotNullFilter of its property,
+ *   except an EqFilter with a null value (it matches the null values).
+ *
+ * The check is conservative: when it cannot be decided (e.g., values of another
+ * type or OR filters that are not equal) it returns false.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+object FilterSubsumption {
+
+    fun subsumes(broader: Filter<*>, narrower: Filter<*>): Boolean {
+        val narrowerConjuncts = conjuncts(narrower)
+
+        return conjuncts(broader).all { b -> narrowerConjuncts.any { n -> implies(n, b) } }
+    }
+
+    private fun conjuncts(filter: Filter<*>): List<Filter<*>> =
+        if (filter is AndFilter<*>) filter.children.flatMap { conjuncts(it) } else listOf(filter)
+
+    /**
+     * True if every row that complies with n also complies with b
+     */
+    private fun implies(n: Filter<*>, b: Filter<*>): Boolean {
+        if (FilterKey.of(n) == FilterKey.of(b)) return true
+        if (n !is BeanFilter<*> || b !is BeanFilter<*> || n.propertyName != b.propertyName) return false
+
+        return when (b) {
+            is IsNotNullFilter<*> -> n !is IsNullFilter<*> && !(n is EqFilter<*> && n.value == null)
+            is StartsWithFilter<*> ->
+                n is StartsWithFilter<*> && (b.ignoreCase || !n.ignoreCase) &&
+                        n.value.dropLast(1).startsWith(b.value.dropLast(1), b.ignoreCase)
+            is FullTextFilter<*> -> {
+                val words = (n as? FullTextFilter<*>)?.let { TextIndex.words(it.value as? String ?: "") }
+
+                words != null && TextIndex.words(b.value as? String ?: "").all { w -> words.any { it.contains(w) } }
+            }
+            is EqFilter<*> -> bound(n)?.let { (op, value) -> op == CompareOperator.eq && compare(value, b.value) == 0 } ?: false
+            is OpFilter<*> -> bound(n)?.let { (op, value) -> withinRange(op, value, b.operator, b.value) } ?: false
+            else -> false
+        }
+    }
+
+    /**
+     * The narrower filter as an operator and a value
+     */
+    private fun bound(filter: Filter<*>): Pair<CompareOperator, Any?>? =
+        when (filter) {
+            is EqFilter<*> -> Pair(CompareOperator.eq, filter.value)
+            is OpFilter<*> -> Pair(filter.operator, filter.value)
+            else -> null
+        }
+
+    /**
+     * True if 'x op value' implies 'x broaderOp broaderValue'
+     */
+    private fun withinRange(op: CompareOperator, value: Any?, broaderOp: CompareOperator, broaderValue: Any?): Boolean {
+        val r = compare(value, broaderValue) ?: return false
+
+        return when (broaderOp) {
+            CompareOperator.eq -> op == CompareOperator.eq && r == 0
+            CompareOperator.ne -> (op == CompareOperator.eq && r != 0) || (op == CompareOperator.ne && r == 0) ||
+                                  (op == CompareOperator.gt && r >= 0) || (op == CompareOperator.lt && r <= 0)
+            CompareOperator.gt -> (op == CompareOperator.gt && r >= 0) || ((op == CompareOperator.ge || op == CompareOperator.eq) && r > 0)
+            CompareOperator.ge -> (op == CompareOperator.gt || op == CompareOperator.ge || op == CompareOperator.eq) && r >= 0
+            CompareOperator.lt -> (op == CompareOperator.lt && r <= 0) || ((op == CompareOperator.le || op == CompareOperator.eq) && r < 0)
+            CompareOperator.le -> (op == CompareOperator.lt || op == CompareOperator.le || op == CompareOperator.eq) && r <= 0
+        }
+    }
+
+    private fun compare(a: Any?, b: Any?): Int? =
+        if (a == null || b == null || a.javaClass != b.javaClass)
+            null
+        else
+            try {
+                ValueTypes.of(a.javaClass).comparator.compare(a, b)
+            } catch (e: RuntimeException) {
+                null
+            }
+}
@@ -25,13 +25,20 @@ package com.ailegorreta.client.dataproviders.service
 import com.github.mvysny.vokdataloader.*
 import com.github.mvysny.vokdataloader.SortClause
 import com.ailegorreta.commons.dtomappers.FilteredDTO
+import com.ailegorreta.commons.dtomappers.PropertyAccessor
+import com.ailegorreta.commons.dtomappers.PropertyAccessors
 import com.ailegorreta.commons.service.FilterChangeEvent
 import com.ailegorreta.commons.service.FilterChangeListener
 import com.ailegorreta.commons.service.ServiceWithFilter
+import io.micrometer.core.instrument.MeterRegistry
 
 import java.math.BigDecimal
 import java.time.*
 import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
 import kotlin.Comparator
 import kotlin.reflect.KClass
 import kotlin.reflect.KProperty1
@@ -50,6 +57,22 @@ import kotlin.reflect.KProperty1
 abstract class InMemoryService<T : FilteredDTO<T>>: ServiceWithFilter {
 
     companion object {
+        /**
+         * When the requested page ends before 1/TOP_K_RATIO of the result, only the
+         * first rows are sorted (top-K); otherwise the full result is sorted and cached.
+         */
+        const val TOP_K_RATIO = 8
+        const val SORT_CACHE_SIZE = 4
+        const val PREDICATE_CACHE_SIZE = 32
+
+        /**
+         * Default executor for initDataSourceAsync, one daemon thread shared by all
+         * the services so the rebuilds never compete with the request threads.
+         */
+        val sharedRebuildExecutor: Executor by lazy {
+            Executors.newSingleThreadExecutor { r -> Thread(r, "in-memory-service-rebuild").also { it.isDaemon = true } }
+        }
+
         fun<T> compareValues(val1: T, val2: T): Int {
             if (val1 is String)
                 return val1.compareTo(val2 as String)
@@ -78,149 +101,709 @@ abstract class InMemoryService<T : FilteredDTO<T>>: ServiceWithFilter {
         }
     }
 
-    private var dirty = true
-    private var cacheFilter: Filter<T>? = null
-    private var cacheResult: List<T>?= null
+    private val resultCache by lazy { FilterResultCache<T>(filterCacheEntries(), filterCacheRows()) }
+    private var activeFilter: FilterKey? = null
+    private var activeFilterDescription: String? = null
+    private var rebuildGeneration = 0L
     private val listeners = ArrayList<FilterChangeListener>()
+    private val itemListeners = CopyOnWriteArrayList<ItemChangeListener<T>>()
+    private var rows: ArrayList<T>? = null
+    private var ids: HashMap<Any?, Int> = HashMap()
+
+    private var indexes: Map<String, PropertyIndex<T>> = HashMap()
+    private var textIndexes: Map<String, TextIndex<T>> = HashMap()
+    private var bitmapIndexes: Map<String, BitmapIndex<T>> = HashMap()
+    private var statistics: Map<String, ColumnStatistics> = HashMap()
+    private var planner: QueryPlanner? = null
+    private val predicateCache = object: LinkedHashMap<FilterKey, RowPredicate<T>>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<FilterKey, RowPredicate<T>>?) = size > PREDICATE_CACHE_SIZE
+    }
+    private val totalPermutations = SortPermutations()
+    private val totalAggregates = HashMap<AggregateKey, AggregateResult>()
+    private val totalDictionaries = HashMap<String, ValueDictionary>()
+    private val metrics by lazy { meterRegistry()?.let { ServiceMetrics(it, this) } }
+    private var shared: SharedDataset<T>? = null
+    private var sharedVersion = -1L
 
     var dataSource: List<T> = ArrayList<T>()
 
+    @Synchronized
     fun initDataSource(dataSource: List<T>) {
+        switchDataSource(dataSource, buildIndexes(dataSource), buildTextIndexes(dataSource), buildBitmapIndexes(dataSource),
+                         ColumnStatistics.of(dataSource))
+        rebuildGeneration++
+    }
+
+    /**
+     * Same as initDataSource but the indexes are built in the rebuildExecutor().
+     * Meanwhile, the queries are still answered with the previous data source. When
+     * the new one is ready it replaces the previous one atomically and the
+     * FilterChangeListeners are notified with the active filter, so the views can
+     * refresh (note: the listener is called from the rebuild thread, use UI.access()).
+     *
+     *  note: only the last call is applied if several rebuilds overlap, and the changes
+     *  done with the mutation methods while the rebuild is running are lost.
+     */
+    fun initDataSourceAsync(dataSource: List<T>): CompletableFuture<Void> {
+        val generation = synchronized(this) { ++rebuildGeneration }
+
+        return CompletableFuture.runAsync({
+            val indexes = buildIndexes(dataSource)
+            val textIndexes = buildTextIndexes(dataSource)
+            val bitmapIndexes = buildBitmapIndexes(dataSource)
+            val statistics = ColumnStatistics.of(dataSource)
+            val filter = synchronized(this) {
+                if (generation != rebuildGeneration) return@runAsync
+
+                activeFilterDescription.also {
+                    switchDataSource(dataSource, indexes, textIndexes, bitmapIndexes, statistics)
+                }
+            }
+
+            fireEvent(filter ?: "")
+        }, rebuildExecutor())
+    }
+
+    /**
+     * Executor for initDataSourceAsync
+     */
+    open fun rebuildExecutor(): Executor = sharedRebuildExecutor
+
+    private fun switchDataSource(dataSource: List<T>, indexes: Map<String, PropertyIndex<T>>,
+                                 textIndexes: Map<String, TextIndex<T>>, bitmapIndexes: Map<String, BitmapIndex<T>>,
+                                 statistics: Map<String, ColumnStatistics>) {
+        this.shared = null
         this.dataSource = dataSource
-        dirty = true
+        this.rows = null
+        this.indexes = indexes
+        this.textIndexes = textIndexes
+        this.bitmapIndexes = bitmapIndexes
+        this.statistics = statistics
+        invalidateCaches()
     }
 
-    private fun simulatePaging(result: List<T>, range: LongRange): List<T> {
-        println("     first:${range.first}  last:${range.last} start:${range.start} step:${range.step}")
-        println("     endInclusive:${range.endInclusive} ")
+    /**
+     * Uses the rows and indexes of a data source shared by all the sessions instead
+     * of a copy per service. Only the filter and sort state and its caches belong
+     * to this service. A new version published in the SharedDataset is taken in the
+     * next fetch or getCount.
+     *
+     *  note: the mutation methods (add, update, remove and upsertAll) are not allowed,
+     *  the changes must be done with SharedDataset.modify().
+     */
+    @Synchronized
+    fun useSharedDataset(shared: SharedDataset<T>) {
+        this.shared = shared
+        rebuildGeneration++
+        bind(shared.snapshot())
+    }
+
+    private fun bind(snapshot: DatasetSnapshot<T>) {
+        this.dataSource = snapshot.rows
+        this.rows = null
+        this.indexes = snapshot.indexes
+        this.textIndexes = snapshot.textIndexes
+        this.bitmapIndexes = snapshot.bitmapIndexes
+        this.statistics = snapshot.statistics
+        this.sharedVersion = snapshot.version
+        invalidateCaches()
+    }
+
+    private fun refreshSnapshot() {
+        val snapshot = shared?.snapshot() ?: return
+
+        if (snapshot.version != sharedVersion) bind(snapshot)
+    }
+
+    private fun invalidateCaches() {
+        planner = null
+        resultCache.invalidate()
+        predicateCache.clear()
+        totalPermutations.clear()
+        totalAggregates.clear()
+        totalDictionaries.clear()
+        activeFilter = null
+        activeFilterDescription = null
+    }
+
+    /**
+     * Maximum number of filter results kept in the cache
+     */
+    open fun filterCacheEntries(): Int = 8
+
+    /**
+     * Maximum number of rows kept by all the cached filter results
+     */
+    open fun filterCacheRows(): Long = 1_000_000L
+
+    fun filterCacheStats() = resultCache.stats()
+
+    /**
+     * Data sources (or filter results when sorting) with at least this number of
+     * rows are filtered and sorted in parallel with the parallelExecutor().
+     */
+    open fun parallelThreshold(): Int = 250_000
+
+    /**
+     * Executor for the parallel mode. By default, all the services share the same
+     * bounded executor; return null to disable the parallel mode.
+     */
+    open fun parallelExecutor(): ParallelExecutor? = ParallelExecutor.shared
 
-        if (range.isEmpty())
+    /**
+     * Registry for the service metrics (see ServiceMetrics). By default, there are
+     * no metrics and the queries do not pay any cost for them.
+     */
+    open fun meterRegistry(): MeterRegistry? = null
+
+    private fun executorFor(rows: Int): ParallelExecutor? =
+        if (rows >= parallelThreshold()) parallelExecutor() else null
+
+    /**
+     * Filterable properties (declared in filterProperties() method of the DTO) that
+     * are indexed when the data source is initialized. Equality, range and prefix
+     * filters over these properties are resolved with a binary search instead of
+     * a scan. The default is no index at all; override it for large data sources.
+     */
+    open fun indexedProperties(): Set<String> = emptySet()
+
+    private fun buildIndexes(dataSource: List<T>) = DatasetSnapshot.buildIndexes(dataSource, indexedProperties())
+
+    /**
+     * String properties (declared in filterProperties() method of the DTO) with a
+     * full text index (see TextIndex). The FullTextFilter over these properties
+     * only verifies the candidate rows given by the index instead of doing a scan.
+     */
+    open fun textIndexedProperties(): Set<String> = emptySet()
+
+    private fun buildTextIndexes(dataSource: List<T>) = DatasetSnapshot.buildTextIndexes(dataSource, textIndexedProperties())
+
+    /**
+     * Low cardinality properties (declared in filterProperties() method of the DTO)
+     * with a BitmapIndex. The equality and IN (OR of equalities) filters over these
+     * properties are resolved with the AND/OR of its bitmaps.
+     */
+    open fun bitmapIndexedProperties(): Set<String> = emptySet()
+
+    private fun buildBitmapIndexes(dataSource: List<T>) =
+        DatasetSnapshot.buildBitmapIndexes(dataSource, bitmapIndexedProperties())
+
+    private fun rowIndexes(): List<RowIndex<T>> = indexes.values + textIndexes.values + bitmapIndexes.values
+
+    /**
+     * Identifies the items for the mutation methods (add, update, remove and upsertAll).
+     * By default, it is the item itself (i.e., equals), override it to return the
+     * id of the DTO so an updated instance replaces the previous one.
+     */
+    open fun idOf(item: T): Any? = item
+
+    fun addItemChangeListener(listener: ItemChangeListener<T>): ItemChangeListener<T> {
+        itemListeners.add(listener)
+
+        return listener
+    }
+
+    /**
+     * Adds a new item at the end of the data source. The indexes and the cached filter
+     * results are updated incrementally.
+     *
+     * note: the ItemChangeListeners of all the mutation methods are called after the
+     * service lock is released, in the thread of the caller.
+     */
+    fun add(item: T) {
+        synchronized(this) {
+            mutableRows()
+            if (ids.containsKey(idOf(item)))
+                throw IllegalArgumentException("Item ${idOf(item)} already exists in the data source")
+            insertRow(item)
+        }
+        fireItemEvent(item, ItemChangeType.ADDED)
+    }
+
+    /**
+     * Replaces the item with the same id. The row keeps its position in the data
+     * source and only this row is updated in the indexes and cached filter results.
+     *
+     * The item must be a new instance: the indexes find the previous row by its
+     * values, so a DTO changed in place is rejected. To change it in place call
+     * remove() before the change and add() after it.
+     */
+    fun update(item: T) {
+        synchronized(this) {
+            mutableRows()
+
+            val position = ids[idOf(item)]
+                    ?: throw IllegalArgumentException("Item ${idOf(item)} does not exist in the data source")
+
+            replaceRow(position, item)
+        }
+        fireItemEvent(item, ItemChangeType.UPDATED)
+    }
+
+    /**
+     * Removes the item with the same id. Returns false if it does not exist.
+     *
+     * note: the last row of the data source takes the position of the removed one.
+     */
+    fun remove(item: T): Boolean {
+        val removed = synchronized(this) {
+            mutableRows()
+
+            val position = ids[idOf(item)] ?: return false
+
+            removeRow(position)
+        }
+
+        fireItemEvent(removed, ItemChangeType.REMOVED)
+
+        return true
+    }
+
+    /**
+     * Updates the existing items (new instances, see update()) and adds the new ones
+     */
+    fun upsertAll(items: Collection<T>) {
+        val events = ArrayList<Pair<T, ItemChangeType>>(items.size)
+
+        synchronized(this) {
+            mutableRows()
+            items.forEach {
+                val position = ids[idOf(it)]
+
+                if (position == null) {
+                    insertRow(it)
+                    events.add(Pair(it, ItemChangeType.ADDED))
+                } else {
+                    replaceRow(position, it)
+                    events.add(Pair(it, ItemChangeType.UPDATED))
+                }
+            }
+        }
+        events.forEach { (item, type) -> fireItemEvent(item, type) }
+    }
+
+    /**
+     * The first mutation makes a copy of the data source (so the list received in
+     * initDataSource is never modified) and the map from id to position.
+     */
+    private fun mutableRows(): ArrayList<T> {
+        check(shared == null) { "The data source is shared, use SharedDataset.modify() to change it" }
+
+        val current = rows
+
+        if (current != null && current === dataSource)
+            return current
+
+        val res = ArrayList(dataSource)
+
+        rows = res
+        dataSource = res
+        ids = HashMap(res.size * 2)
+        res.forEachIndexed { i, row -> ids[idOf(row)] = i }
+
+        return res
+    }
+
+    private fun insertRow(item: T) {
+        val data = mutableRows()
+        val position = data.size
+
+        data.add(item)
+        ids[idOf(item)] = position
+        if (position == 0) {
+            indexes = buildIndexes(data)
+            textIndexes = buildTextIndexes(data)
+            bitmapIndexes = buildBitmapIndexes(data)
+            planner = null
+        } else
+            rowIndexes().forEach { it.insert(position, item) }
+        resultCache.update { entry ->
+            if (matches(entry, item)) {
+                entry.add(item)
+                1
+            } else 0
+        }
+        totalPermutations.clear()
+        totalAggregates.clear()
+        totalDictionaries.clear()
+    }
+
+    private fun replaceRow(position: Int, item: T) {
+        val data = mutableRows()
+        val old = data[position]
+
+        require(old !== item) { "Item ${idOf(item)} was changed in place, update it with a new instance" }
+        data[position] = item
+        ids.remove(idOf(old))
+        ids[idOf(item)] = position
+        rowIndexes().forEach {
+            it.remove(position, old)
+            it.insert(position, item)
+        }
+        resultCache.update { entry ->
+            val i = entry.indexOf(old)
+            val isIn = matches(entry, item)
+
+            when {
+                i >= 0 && isIn -> { entry.set(i, item); 0 }
+                i >= 0 -> { entry.removeAt(i); -1 }
+                isIn -> { entry.add(item); 1 }
+                else -> 0
+            }
+        }
+        totalPermutations.clear()
+        totalAggregates.clear()
+        totalDictionaries.clear()
+    }
+
+    /**
+     * Removes the row moving the last row of the data source to its position, so
+     * only the moved row has to be updated in the indexes.
+     */
+    private fun removeRow(position: Int): T {
+        val data = mutableRows()
+        val removed = data[position]
+        val lastPosition = data.size - 1
+
+        rowIndexes().forEach { it.remove(position, removed) }
+        if (position != lastPosition) {
+            val last = data[lastPosition]
+
+            rowIndexes().forEach {
+                it.remove(lastPosition, last)
+                it.insert(position, last)
+            }
+            data[position] = last
+            ids[idOf(last)] = position
+        }
+        data.removeAt(lastPosition)
+        ids.remove(idOf(removed))
+        resultCache.update { entry ->
+            val i = entry.indexOf(removed)
+
+            if (i >= 0) {
+                entry.removeAt(i)
+                -1
+            } else 0
+        }
+        totalPermutations.clear()
+        totalAggregates.clear()
+        totalDictionaries.clear()
+
+        return removed
+    }
+
+    private fun matches(entry: FilterCacheEntry<T>, row: T): Boolean {
+        val predicate = entry.predicate
+                ?: FilterCompiler(PropertyAccessors.of(row)).compile(entry.filter).also { entry.predicate = it }
+
+        return predicate(row)
+    }
+
+    private fun fireItemEvent(item: T, type: ItemChangeType) {
+        itemListeners.forEach { it.itemChange(ItemChangeEvent(this, item, type)) }
+    }
+
+    /**
+     * Tries to resolve the filter with an index. The returned row positions are
+     * relative to the data source.
+     */
+    private fun indexLookup(filter: Filter<*>): IntArray? =
+        if (filter !is BeanFilter<*>)
+            null
+        else
+            indexes[filter.propertyName]?.lookup(filter)
+
+    private fun bitmapLookup(filter: Filter<*>): RoaringBitmap? {
+        val propertyName = if (filter is OrFilter<*>) (filter.children.firstOrNull() as? BeanFilter<*>)?.propertyName
+                           else (filter as? BeanFilter<*>)?.propertyName
+
+        return bitmapIndexes[propertyName]?.lookup(filter)
+    }
+
+    private fun textIndexLookup(filter: Filter<*>): IntArray? =
+        if (filter !is FullTextFilter<*>)
+            null
+        else
+            textIndexes[filter.propertyName]?.lookup(filter)
+
+    /**
+     * The page is a copy: the filter results and the data source are changed in place
+     * by the mutation methods, so a view over them could change (or fail) after fetch
+     * returned.
+     */
+    private fun simulatePaging(result: List<T>, range: LongRange): List<T> {
+        if (range.isEmpty() || range.first >= result.size)
             return ArrayList()
 
+        val metrics = metrics
+        val start = if (metrics != null) System.nanoTime() else 0L
         val end = minOf(range.last.toInt() + 1, result.size)
+        val res = ArrayList(result.subList(range.first.toInt(), end))
 
-        println("      end:${end}")
-
-        val res = result.subList(range.first.toInt(), end)
+        metrics?.page(start)
 
         return res
     }
 
+    @Synchronized
     open fun fetch(filter: Filter<T>?, sortBy: List<SortClause>, range: LongRange): List<T> {
+        refreshSnapshot()
         if (filter != null) {
-            if (!dirty && filter.toString().equals(cacheFilter.toString()))
-                return simulatePaging(doSorting(cacheResult!!, sortBy), range)
+            val entry = cachedEntry(FilterKey.of(filter), filter)
 
-            return simulatePaging(doSorting(doFiltering(filter, dataSource), sortBy), range)
+            return doSorting(entry.rows, entry.permutations, sortBy, range)
         } else
-            return simulatePaging(doSorting(dataSource, sortBy), range)
+            return doSorting(dataSource, totalPermutations, sortBy, range)
     }
 
     /**
      *  Returns the number of rows that complies with the query
      */
+    @Synchronized
     open fun getCount(filter: Filter<T>?): Long {
+        refreshSnapshot()
         if (filter != null) {
-            if (!dirty && filter.toString().equals(cacheFilter.toString()))
-                return cacheResult!!.size.toLong()
-            dirty = false
-            cacheFilter = filter
-            cacheResult = doFiltering(filter, dataSource)
-            fireEvent(cacheFilter.toString())
-
-            return cacheResult!!.size.toLong()
+            val key = FilterKey.of(filter)
+
+            if (key != activeFilter) {
+                activeFilter = key
+                activeFilterDescription = filter.toString()
+                fireEvent(filter.toString())
+            }
+
+            return filtered(key, filter).size.toLong()
         } else {
-            dirty = true
+            activeFilter = null
+            activeFilterDescription = null
             return dataSource.size.toLong()
         }
     }
 
     /**
-     *  This method do the filtering for each of the columns declared
+     * Aggregates the rows that comply with the filter (all the rows if it is null),
+     * e.g. footer totals or facet counts per status:
+     *
+     *      aggregate(filter, "status", listOf(Aggregation.count(), Aggregation.sum("monto")))
+     *
+     * The aggregation is done in one pass over the filter result (in parallel for
+     * large results) and it is cached with the filter result, so it is computed
+     * again only when the filter result changes.
      */
-    private fun doFiltering(filter: Filter<T>, res: List<T>): List<T> {
-
-        fun compare(val1: Any?, val2: Any?, op: CompareOperator) =
-                if (val1 == null || val2 == null)
-                    false
-                else {
-                    val r = compareValues(val1, convert(val2, val1::class))
-
-                    when (op) {
-                        CompareOperator.eq -> r == 0
-                        CompareOperator.ne -> r != 0
-                        CompareOperator.ge -> r >= 0
-                        CompareOperator.gt -> r > 0
-                        CompareOperator.le -> r <= 0
-                        CompareOperator.lt -> r < 0
-                    }
-                }
+    @Synchronized
+    open fun aggregate(filter: Filter<T>?, groupBy: String?, aggregations: List<Aggregation>): AggregateResult {
+        refreshSnapshot()
 
-        fun like(value1: Any?, value2: Any?) =
-                if (value1 == null || value2 == null)
-                    false
-                else if (value1 is String && value2 is String)
-                    value1.startsWith(value2)
-                else
-                    false
-        fun ilike(value1: Any?, value2: Any?) = if (value1 == null || value2 == null)
-            false
-        else if (value1 is String && value2 is String)
-            value1.contains(value2)
-        else
-            false
+        val aggregateKey = AggregateKey(groupBy, aggregations)
+
+        if (filter == null)
+            return totalAggregates.getOrPut(aggregateKey) { doAggregation(dataSource, groupBy, aggregations) }
+
+        val key = FilterKey.of(filter)
+        val entry = cachedEntry(key, filter)
+
+        return entry.aggregates.getOrPut(aggregateKey) { doAggregation(entry.rows, groupBy, aggregations) }
+    }
+
+    /**
+     * Distinct values of the property with its counts, e.g. for the combo box of a
+     * filter bar. Pass the active filter of the grid to list only the values of the
+     * rows that comply with it (all the rows if it is null); the prefix selects the
+     * values that start with it, ignoring case.
+     *
+     * The dictionary of values is built once from the group counts (see aggregate())
+     * and it is cached with the filter result, so the drop-down does not scan nor
+     * sort the data source each time it is opened.
+     */
+    @Synchronized
+    open fun distinctValues(propertyName: String, filter: Filter<T>? = null,
+                            prefix: String? = null, limit: Int = 100): List<DistinctValue> {
+        refreshSnapshot()
+        if (dataSource.isEmpty()) return ArrayList()
+
+        val dictionaries = if (filter == null) totalDictionaries
+                           else cachedEntry(FilterKey.of(filter), filter).dictionaries
+        val dictionary = dictionaries.getOrPut(propertyName) {
+            val accessor = PropertyAccessors.of(dataSource.first())[propertyName]
+                    ?: throw IllegalArgumentException("Property $propertyName not declare as filterable")
+            val counts = aggregate(filter, propertyName, listOf(Aggregation.count()))
+
+            ValueDictionary(counts.groups.mapValues { it.value[0] as Long }, ValueTypes.of(accessor.type).comparator)
+        }
+
+        return dictionary.values(prefix, limit)
+    }
+
+    private fun doAggregation(rows: List<T>, groupBy: String?, aggregations: List<Aggregation>): AggregateResult {
+        if (rows.isEmpty()) return AggregateResult(aggregations, HashMap())
+
+        val aggregator = Aggregator(PropertyAccessors.of(rows.first()), groupBy, aggregations)
+        val state = executorFor(rows.size)?.aggregate(rows, aggregator::newState, aggregator::accumulate, aggregator::combine)
+                        ?: ParallelExecutor.fold(rows, 0, rows.size, aggregator::newState, aggregator::accumulate)
+
+        return aggregator.result(state)
+    }
+
+    /**
+     * The filter result is taken from the cache, both getCount and fetch share
+     * the same entries since the key is the normalized filter. A new filter that
+     * is narrower than a cached one (e.g. one more letter in a StartsWithFilter) is
+     * evaluated only over the cached result.
+     */
+    private fun filtered(key: FilterKey, filter: Filter<T>): List<T> =
+        resultCache.get(key) ?: (refine(filter) ?: doFiltering(key, filter)).also { resultCache.put(key, filter, it) }
+
+    private fun cachedEntry(key: FilterKey, filter: Filter<T>): FilterCacheEntry<T> =
+        resultCache.entry(key) ?: resultCache.put(key, filter, refine(filter) ?: doFiltering(key, filter))
+
+    /**
+     * Evaluates the filter over the smallest cached result of a broader filter. It is
+     * not used if the plan of the filter has an index lookup that gives less rows.
+     */
+    private fun refine(filter: Filter<T>): List<T>? {
+        if (dataSource.isEmpty()) return null
+
+        val broader = resultCache.broader(filter) ?: return null
+        val plan = planner().plan(filter, dataSource.size)
+
+        if (plan.lookups.isNotEmpty() && plan.estimatedRows < broader.rows.size) return null
 
-        fun fullText(value1: Any?, value2: Any?) =
-                if (value1 == null || value2 == null)
-                    false
-                else if (value1 is String && value2 is String)
-                    value1.endsWith(value2)
+        val metrics = metrics
+        val start = if (metrics != null) System.nanoTime() else 0L
+        val predicate = FilterCompiler(PropertyAccessors.of(dataSource.first())).compile(filter)
+        val res = broader.rows.filterTo(ArrayList(), predicate)
+
+        metrics?.filter(start, broader.rows.size, res.size)
+
+        return res
+    }
+
+    /**
+     *  This method do the filtering for each of the columns declared. The filter
+     *  is evaluated in a single pass:
+     *  - The conjuncts that the QueryPlanner resolves with an index give the candidate rows.
+     *  - The rest of the filter is compiled into one predicate (cached by filter), with
+     *    the conjuncts in the order of the plan, and evaluated only over these candidates
+     *    or over all the data source.
+     */
+    private fun doFiltering(key: FilterKey, filter: Filter<T>): List<T> {
+        if (dataSource.isEmpty()) return ArrayList()  // avoid dataSource.first() call to collapse
+
+        val metrics = metrics
+        val start = if (metrics != null) System.nanoTime() else 0L
+        val plan = planner().plan(filter, dataSource.size)
+        var positions: IntArray? = null
+        var bitmap: RoaringBitmap? = null
+        val residual = ArrayList<Filter<*>>()
+
+        // first intersect the conjuncts that the planner resolves with an index
+        plan.lookups.forEach {
+            if (it.access == Access.BITMAP) {
+                val found = bitmapLookup(it.filter)
+
+                if (found == null) residual.add(it.filter)
+                else bitmap = bitmap?.and(found) ?: found
+            } else {
+                val narrowing = if (it.access == Access.INDEX) indexLookup(it.filter) else textIndexLookup(it.filter)
+
+                if (narrowing == null)
+                    residual.add(it.filter)
                 else
-                    false
-
-        if (res.isEmpty()) return res  // avoid res.first() call to collapse
-        if (filter is BeanFilter) {
-            val propName = filter.propertyName
-            val prop = res.first()
-                          .filterProperties()[propName]
-                        ?: throw IllegalArgumentException("Property $propName not declare as filterable")
-
-            return when (filter) {
-                is EqFilter -> res.filter { p -> prop.get(p)!!.equals(filter.value) }
-                is IsNotNullFilter -> res.filter { p -> prop.get(p) != null }
-                is IsNullFilter -> res.filter { p -> prop.get(p) == null }
-                is StartsWithFilter -> res.filter { p -> like(prop.get(p), filter.value.dropLast(1)) }
-                is OpFilter -> res.filter { p -> compare(prop.get(p), filter.value, filter.operator) }
-                is FullTextFilter -> res.filter { p -> fullText(prop.get(p), filter.value) }
-                else -> throw IllegalArgumentException("Unsupported filter $filter")
+                    positions = if (positions == null) narrowing
+                                else PropertyIndex.intersect(positions!!, narrowing)
             }
-        } else {
-            when (filter) {
-                is AndFilter -> {
-                    var result = res
+        }
+        // the bitmaps are converted to positions only at the end
+        bitmap?.let { found ->
+            positions = positions?.filter { it in found }?.toIntArray() ?: found.toIntArray()
+        }
+        plan.predicates.forEach { residual.add(it.filter) }
 
-                    filter.children.forEach {
-                        result = doFiltering(it as Filter<T>, result ) }
+        val candidates = positions
 
-                    return result
-                }
-                else -> throw IllegalArgumentException("Unsupported filter $filter")
-            }
+        if (residual.isEmpty())
+            return candidates!!.map { dataSource[it] }.also { metrics?.filter(start, 0, it.size) }
+
+        val predicate = predicateCache[key] ?: compile(residual).also { predicateCache[key] = it }
+        val size = candidates?.size ?: dataSource.size
+        val executor = executorFor(size)
+
+        val res = executor?.filter(dataSource, candidates, predicate)
+                    ?: ParallelExecutor.scan(dataSource, candidates, 0, size, predicate)
+
+        metrics?.filter(start, size, res.size)
+
+        return res
+    }
+
+    private fun planner(): QueryPlanner =
+        planner ?: QueryPlanner(statistics, indexes.keys, textIndexes.keys, bitmapIndexes.keys).also { planner = it }
+
+    /**
+     * Shows how the filter is evaluated: the conjuncts resolved with an index, the
+     * order of the predicates and the estimated number of rows (see QueryPlanner).
+     */
+    @Synchronized
+    fun explain(filter: Filter<T>): String {
+        refreshSnapshot()
+
+        return planner().plan(filter, dataSource.size).toString()
+    }
+
+    private fun compile(conjuncts: List<Filter<*>>): RowPredicate<T> {
+        val compiler = FilterCompiler(PropertyAccessors.of(dataSource.first()))
+
+        return compiler.and(conjuncts.map { compiler.compile(it) })
+    }
+
+    /**
+     *  After the filtering is done now we can do the sorting for all the sort clauses
+     *  and return the requested page. The sort order is kept as a permutation of the
+     *  filter result:
+     *  - If a permutation for the same sort is kept with the result it is reused (the
+     *    permutations are discarded with the result or when its rows change).
+     *  - If the page is near the top, only the first rows are sorted (top-K).
+     *  - Otherwise the full result is sorted and its permutation is cached, so
+     *    scrolling down does not sort again.
+     */
+    private fun doSorting(res: List<T>, permutations: SortPermutations, sortBy: List<SortClause>, range: LongRange): List<T> {
+        if (sortBy.isEmpty() || res.isEmpty() || range.isEmpty())
+            return simulatePaging(res, range)
+
+        val key = sortBy.map { Pair(it.propertyName, it.asc) }
+        val k = range.last.toInt() + 1
+        val permutation = permutations[key] ?: run {
+            val metrics = metrics
+            val start = if (metrics != null) System.nanoTime() else 0L
+            val sorted = if (k.toLong() * TOP_K_RATIO < res.size)
+                             RowSorter.topK(res, comparator(res.first(), sortBy), k)
+                         else
+                             RowSorter.sort(res, comparator(res.first(), sortBy), executorFor(res.size)).also { permutations[key] = it }
+
+            metrics?.sort(start)
+            sorted
         }
+
+        return simulatePaging(PermutedList(res, permutation), range)
+    }
+
+    private fun comparator(row: T, sortBy: List<SortClause>): MultiPropertyComparator<T> {
+        val props = sortBy.map {
+            PropertyAccessors.of(row, it.propertyName)
+                    ?: throw IllegalArgumentException("Property ${it.propertyName} not declare as filterable")
+        }
+
+        return MultiPropertyComparator(props, sortBy)
     }
 
     /**
-     *  After the filtering is done now we can do the sorting. For simplicity
-     *  we do the sorting for the first attribute only (in mmeory), to avoid doing
-     *  sorting for inner multiple properties.
+     * Read only view of the rows in the order given by a permutation of its positions
      */
-    private fun doSorting(res: List<T>, sortBy: List<SortClause>): List<T> {
-        if (sortBy.isEmpty() || res.isEmpty())
-            return res
-        val sort = sortBy.first()
-        val prop = res.first().filterProperties().get(sort.propertyName)
+    private class PermutedList<T>(private val rows: List<T>, private val permutation: IntArray): AbstractList<T>() {
+        override val size: Int
+            get() = permutation.size
 
-        return res.sortedWith( ComparatorWithProperty((prop as KProperty1<T, Any>?)!!, sort))
+        override fun get(index: Int): T = rows[permutation[index]]
     }
 
     /**
@@ -240,17 +823,28 @@ abstract class InMemoryService<T : FilteredDTO<T>>: ServiceWithFilter {
      * This inner class do the comparision between two POJOS according to
      * a variable property.
      *
-     * note: since we do not know waht type os value will be returned the property
-     *       we do not know is if is Comparable and the Kotlin compiler complains
-     *       so we need to check each type of data the property returns. Not a
-     *       good general solution.
+     * note: the comparator is resolved once from the declared type of the property
+     *       (see ValueTypes). Null values are sorted first in ascending order.
      */
-    class ComparatorWithProperty<T>(val prop: KProperty1<T, Any>, val sort: SortClause): Comparator<T> {
+    class ComparatorWithProperty<T>(val prop: PropertyAccessor<T>, val sort: SortClause): Comparator<T> {
+
+        private val comparator = ValueTypes.of(prop.type).comparator
+
+        @Suppress("UNCHECKED_CAST")
+        constructor(prop: KProperty1<T, Any>, sort: SortClause):
+                this(PropertyAccessors.fromProperty(prop as KProperty1<T, Any?>), sort)
+
         override fun compare(o1: T, o2: T): Int {
             val val1 = prop.get(o1)
             val val2 = prop.get(o2)
+            val r = when {
+                        val1 === val2 -> 0
+                        val1 == null -> -1
+                        val2 == null -> 1
+                        else -> comparator.compare(val1, val2)
+                    }
 
-            return compareValues(val1, val2) * (if (sort.asc) 1 else -1)
+            return r * (if (sort.asc) 1 else -1)
         }
     }
 }
@@ -0,0 +1,55 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  ItemChangeListener.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import java.util.EventListener
+import java.util.EventObject
+
+/**
+ * Listener for the changes of single rows done with the InMemoryService
+ * mutation methods (add, update, remove and upsertAll).
+ *
+ * The typical listener is the Vaadin data provider of the Grid:
+ * - UPDATED: dataProvider.refreshItem(event.item). Note that the data provider
+ *   must identify the item by its id (override getId()) because the updated
+ *   item is a new instance.
+ * - ADDED or REMOVED: dataProvider.refreshAll() since the size changes.
+ *
+ * The listener is called after the service lock is released, from the thread that
+ * did the change (e.g., a DeltaLoader thread). Update the UI with ui.access(), not
+ * with ui.accessSynchronously(), so the loader thread does not wait for the session.
+ *
+ * @author rlh
+ * @project : ailegorreta-kit-client-dataproviders
+ * @date October 2023
+ */
+interface ItemChangeListener<T>: EventListener {
+    fun itemChange(event: ItemChangeEvent<T>)
+}
+
+enum class ItemChangeType { ADDED, UPDATED, REMOVED }
+
+/**
+ * Event with the changed item. For REMOVED the item is the one that was removed.
+ */
+class ItemChangeEvent<T>(source: Any, val item: T, val type: ItemChangeType): EventObject(source)
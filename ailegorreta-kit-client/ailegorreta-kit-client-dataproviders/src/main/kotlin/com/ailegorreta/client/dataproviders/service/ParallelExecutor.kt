@@ -0,0 +1,186 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  ParallelExecutor.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.ForkJoinTask
+import java.util.concurrent.RecursiveAction
+import java.util.concurrent.Semaphore
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Executes the filtering and sorting of large data sources in parallel, in a
+ * dedicated ForkJoinPool (the common pool is never used).
+ *
+ * To avoid that one user query takes all the threads, only maxConcurrentQueries
+ * queries run in parallel at the same time. If no permit is available the query
+ * is executed sequentially in the caller thread, so it never waits for the pool.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class ParallelExecutor(val parallelism: Int = Runtime.getRuntime().availableProcessors(),
+                       val maxConcurrentQueries: Int = maxOf(1, parallelism / 4)) {
+
+    private val threadCount = AtomicInteger()
+    private val pool = ForkJoinPool(parallelism, { p ->
+                                        val thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p)
+
+                                        thread.name = "in-memory-service-${threadCount.incrementAndGet()}"
+                                        thread.isDaemon = true
+                                        thread
+                                    }, null, false)
+    private val permits = Semaphore(maxConcurrentQueries)
+
+    /**
+     * Filters the rows (or only the candidates positions if not null) in chunks
+     * and concatenates the chunk results, so the data source order is kept.
+     */
+    fun <T> filter(rows: List<T>, candidates: IntArray?, predicate: RowPredicate<T>): List<T> {
+        val size = candidates?.size ?: rows.size
+
+        if (!permits.tryAcquire())
+            return scan(rows, candidates, 0, size, predicate)
+        try {
+            return pool.invoke(ForkJoinTask.adapt(Callable {
+                val chunk = maxOf(MIN_CHUNK, (size + parallelism * 4 - 1) / (parallelism * 4))
+                val tasks = (0 until size step chunk).map { from ->
+                                ForkJoinTask.adapt(Callable { scan(rows, candidates, from, minOf(from + chunk, size), predicate) })
+                            }
+
+                ForkJoinTask.invokeAll(tasks)
+
+                val result = ArrayList<T>(tasks.sumOf { it.join().size })
+
+                tasks.forEach { result.addAll(it.join()) }
+                result
+            }))
+        } finally {
+            permits.release()
+        }
+    }
+
+    /**
+     * Aggregates the rows in chunks, each chunk with its own state, and combines
+     * the chunk states in order.
+     */
+    fun <T, S> aggregate(rows: List<T>, supplier: () -> S, accumulate: (S, T) -> Unit, combine: (S, S) -> S): S {
+        if (!permits.tryAcquire())
+            return fold(rows, 0, rows.size, supplier, accumulate)
+        try {
+            return pool.invoke(ForkJoinTask.adapt(Callable {
+                val chunk = maxOf(MIN_CHUNK, (rows.size + parallelism * 4 - 1) / (parallelism * 4))
+                val tasks = (0 until rows.size step chunk).map { from ->
+                                ForkJoinTask.adapt(Callable { fold(rows, from, minOf(from + chunk, rows.size), supplier, accumulate) })
+                            }
+
+                ForkJoinTask.invokeAll(tasks)
+                tasks.map { it.join() }.reduceOrNull(combine) ?: supplier()
+            }))
+        } finally {
+            permits.release()
+        }
+    }
+
+    /**
+     * Parallel merge sort of the row positions, without boxing them (see RowSorter)
+     */
+    fun sort(positions: IntArray, comparator: IntComparator) {
+        val buffer = IntArray(positions.size)
+
+        if (!permits.tryAcquire()) {
+            RowSorter.mergeSort(positions, buffer, 0, positions.size, comparator)
+            return
+        }
+        try {
+            pool.invoke(SortTask(positions, buffer, 0, positions.size, comparator))
+        } finally {
+            permits.release()
+        }
+    }
+
+    /**
+     * Merge sort of the positions from..to: the halves are sorted in parallel down
+     * to MIN_CHUNK positions and then merged.
+     */
+    private class SortTask(private val positions: IntArray, private val buffer: IntArray,
+                           private val from: Int, private val to: Int,
+                           private val comparator: IntComparator): RecursiveAction() {
+        override fun compute() {
+            if (to - from <= MIN_CHUNK) {
+                RowSorter.mergeSort(positions, buffer, from, to, comparator)
+                return
+            }
+
+            val middle = (from + to) ushr 1
+
+            invokeAll(SortTask(positions, buffer, from, middle, comparator),
+                      SortTask(positions, buffer, middle, to, comparator))
+            RowSorter.merge(positions, buffer, from, middle, to, comparator)
+        }
+    }
+
+    companion object {
+        const val MIN_CHUNK = 8_192
+
+        /**
+         * Executor shared by all the InMemoryService instances of the JVM
+         */
+        val shared: ParallelExecutor by lazy { ParallelExecutor() }
+
+        /**
+         * Sequential aggregation of the rows from..to
+         */
+        fun <T, S> fold(rows: List<T>, from: Int, to: Int, supplier: () -> S, accumulate: (S, T) -> Unit): S {
+            val state = supplier()
+
+            for (i in from until to) accumulate(state, rows[i])
+
+            return state
+        }
+
+        /**
+         * Sequential scan of the rows from..to (or of the candidates positions from..to)
+         */
+        fun <T> scan(rows: List<T>, candidates: IntArray?, from: Int, to: Int, predicate: RowPredicate<T>): ArrayList<T> {
+            val result = ArrayList<T>()
+
+            if (candidates != null)
+                for (i in from until to) {
+                    val row = rows[candidates[i]]
+
+                    if (predicate(row)) result.add(row)
+                }
+            else
+                for (i in from until to) {
+                    val row = rows[i]
+
+                    if (predicate(row)) result.add(row)
+                }
+
+            return result
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  PartitionedInMemoryService.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import com.ailegorreta.commons.dtomappers.FilteredDTO
+import com.ailegorreta.commons.service.FilterChangeEvent
+import com.ailegorreta.commons.service.FilterChangeListener
+import com.ailegorreta.commons.service.ServiceWithFilter
+import com.github.mvysny.vokdataloader.Filter
+import com.github.mvysny.vokdataloader.SortClause
+import com.vaadin.flow.shared.Registration
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * Data source split in partitions by a key of the rows, e.g. the company of a
+ * multi-tenant application. Each partition is a complete InMemoryService (rows,
+ * indexes, statistics and caches), so a query only evaluates the rows of its
+ * partition and the users of different partitions do not block each other.
+ *
+ * The queries are routed to currentPartition(), typically the company of the
+ * user of the session:
+ *
+ *      override fun currentPartition() = currentSession.userInfo.company
+ *
+ * The mutation methods are routed by the partitionOf() the item, and an updated
+ * item whose key changed is moved to its new partition.
+ *
+ * The service and its partitions are shared by all the sessions, so it does not keep
+ * the active filter nor the filter listeners of any of them: each session uses its
+ * own session() view (e.g., a @VaadinSessionScope bean) that keeps them. The item
+ * listeners are kept by the service (not by the partitions) and they are removed
+ * with the returned Registration.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+abstract class PartitionedInMemoryService<T : FilteredDTO<T>, K : Any> {
+
+    private val partitions = ConcurrentHashMap<K, InMemoryService<T>>()
+    private val keys = ConcurrentHashMap<Any, K>()
+    private val itemListeners = CopyOnWriteArrayList<ItemListener<T, K>>()
+
+    /**
+     * Partition of the row
+     */
+    abstract fun partitionOf(item: T): K
+
+    /**
+     * Partition of the caller, the queries and the item listeners use it
+     */
+    abstract fun currentPartition(): K
+
+    /**
+     * Creates the service of a new partition. Its hooks (indexedProperties, idOf,
+     * meterRegistry, etc.) define how each partition is indexed and cached.
+     */
+    abstract fun newPartition(key: K): InMemoryService<T>
+
+    fun partition(key: K): InMemoryService<T> =
+        partitions.computeIfAbsent(key) { newKey ->
+            newPartition(newKey).also { partition ->
+                partition.addItemChangeListener(object: ItemChangeListener<T> {
+                    override fun itemChange(event: ItemChangeEvent<T>) =
+                        itemListeners.forEach { if (it.key == newKey) it.listener.itemChange(event) }
+                })
+            }
+        }
+
+    val partitionKeys: Set<K>
+        get() = partitions.keys
+
+    /**
+     * Splits the rows by partition and initializes each one. The existing partitions
+     * without rows are emptied (not removed).
+     */
+    @Synchronized
+    fun initDataSource(dataSource: List<T>) {
+        val groups = dataSource.groupByTo(HashMap()) { partitionOf(it) }
+
+        keys.clear()
+        partitions.keys.forEach { groups.putIfAbsent(it, ArrayList()) }
+        groups.forEach { (key, rows) ->
+            val partition = partition(key)
+
+            rows.forEach { row -> partition.idOf(row)?.let { keys[it] = key } }
+            partition.initDataSource(rows)
+        }
+    }
+
+    fun fetch(filter: Filter<T>?, sortBy: List<SortClause>, range: LongRange): List<T> =
+        partition(currentPartition()).fetch(filter, sortBy, range)
+
+    fun getCount(filter: Filter<T>?): Long = partition(currentPartition()).getCount(filter)
+
+    fun aggregate(filter: Filter<T>?, groupBy: String?, aggregations: List<Aggregation>): AggregateResult =
+        partition(currentPartition()).aggregate(filter, groupBy, aggregations)
+
+    fun distinctValues(propertyName: String, filter: Filter<T>? = null,
+                       prefix: String? = null, limit: Int = 100): List<DistinctValue> =
+        partition(currentPartition()).distinctValues(propertyName, filter, prefix, limit)
+
+    fun explain(filter: Filter<T>): String = partition(currentPartition()).explain(filter)
+
+    @Synchronized
+    fun add(item: T) {
+        val key = partitionOf(item)
+        val partition = partition(key)
+
+        partition.add(item)
+        partition.idOf(item)?.let { keys[it] = key }
+    }
+
+    @Synchronized
+    fun update(item: T) {
+        val key = partitionOf(item)
+        val partition = partition(key)
+        val id = partition.idOf(item)
+        val previous = id?.let { keys[it] }
+
+        if (previous != null && previous != key) {
+            partition(previous).remove(item)
+            partition.add(item)
+            keys[id] = key
+        } else
+            partition.update(item)
+    }
+
+    @Synchronized
+    fun remove(item: T): Boolean {
+        val id = partition(partitionOf(item)).idOf(item)
+        val key = id?.let { keys.remove(it) } ?: partitionOf(item)
+
+        return partition(key).remove(item)
+    }
+
+    @Synchronized
+    fun upsertAll(items: Collection<T>) {
+        items.groupBy { partitionOf(it) }.forEach { (key, rows) ->
+            val partition = partition(key)
+
+            rows.forEach { row ->
+                val id = partition.idOf(row) ?: return@forEach
+                val previous = keys.put(id, key)
+
+                if (previous != null && previous != key) partition(previous).remove(row)
+            }
+            partition.upsertAll(rows)
+        }
+    }
+
+    /**
+     * The listener receives the changes of the items of the currentPartition()
+     */
+    fun addItemChangeListener(listener: ItemChangeListener<T>): Registration {
+        val itemListener = ItemListener(currentPartition(), listener)
+
+        itemListeners.add(itemListener)
+
+        return Registration { itemListeners.remove(itemListener) }
+    }
+
+    /**
+     * New view of the service for one session
+     */
+    fun session() = Session()
+
+    /**
+     * Queries of one session. It keeps the active filter of the session and fires
+     * the filter changes only to the listeners of the session.
+     */
+    inner class Session: ServiceWithFilter {
+        private var activeFilter: FilterKey? = null
+        private val listeners = CopyOnWriteArrayList<FilterChangeListener>()
+
+        fun fetch(filter: Filter<T>?, sortBy: List<SortClause>, range: LongRange): List<T> =
+            this@PartitionedInMemoryService.fetch(filter, sortBy, range)
+
+        fun getCount(filter: Filter<T>?): Long {
+            val key = filter?.let { FilterKey.of(it) }
+
+            if (key != activeFilter) {
+                activeFilter = key
+                if (filter != null)
+                    listeners.forEach { it.filterChange(FilterChangeEvent(this, filter.toString())) }
+            }
+
+            return this@PartitionedInMemoryService.getCount(filter)
+        }
+
+        fun aggregate(filter: Filter<T>?, groupBy: String?, aggregations: List<Aggregation>): AggregateResult =
+            this@PartitionedInMemoryService.aggregate(filter, groupBy, aggregations)
+
+        fun distinctValues(propertyName: String, filter: Filter<T>? = null,
+                           prefix: String? = null, limit: Int = 100): List<DistinctValue> =
+            this@PartitionedInMemoryService.distinctValues(propertyName, filter, prefix, limit)
+
+        fun explain(filter: Filter<T>): String = this@PartitionedInMemoryService.explain(filter)
+
+        override fun addFilterChangeListener(listener: FilterChangeListener): FilterChangeListener {
+            listeners.add(listener)
+
+            return listener
+        }
+
+        fun removeFilterChangeListener(listener: FilterChangeListener) {
+            listeners.remove(listener)
+        }
+
+        fun addItemChangeListener(listener: ItemChangeListener<T>): Registration =
+            this@PartitionedInMemoryService.addItemChangeListener(listener)
+    }
+
+    private class ItemListener<T, K>(val key: K, val listener: ItemChangeListener<T>)
+}
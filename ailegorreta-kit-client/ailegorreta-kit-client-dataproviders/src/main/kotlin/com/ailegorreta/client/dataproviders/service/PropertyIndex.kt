@@ -0,0 +1,248 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  PropertyIndex.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import com.github.mvysny.vokdataloader.*
+
+/**
+ * Sorted index for one filterable property of the data source. It keeps the
+ * non-null values sorted together with its row position inside the data source,
+ * so equality, range and prefix filters can be resolved with a binary search
+ * instead of a linear scan.
+ *
+ * Rows with null value are not indexed (the null filters always do a scan).
+ * The keys are compared and the filter values converted with the ValueType of
+ * the property, the same as the scan does (see FilterCompiler).
+ *
+ * The index can be maintained incrementally with insert() and remove() when a
+ * row of the data source is added, updated or removed.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class PropertyIndex<T>(val propertyName: String, rows: List<T>, private val getter: (T) -> Any?,
+                       type: ValueType = ValueTypes.dynamic): RowIndex<T> {
+
+    private var keys: Array<Any?>
+    private var positions: IntArray
+    private var count: Int
+    private val type: ValueType
+    private val comparator: Comparator<Any>
+
+    init {
+        val values = arrayOfNulls<Any>(rows.size)
+
+        rows.forEachIndexed { i, row -> values[i] = getter(row) }
+        // a property declared as Object takes the type of its values
+        this.type = if (type === ValueTypes.dynamic) values.firstOrNull { it != null }?.let { ValueTypes.of(it.javaClass) } ?: type
+                    else type
+        comparator = this.type.comparator
+
+        val sorted = rows.indices.filter { values[it] != null }
+                                 .sortedWith { a, b -> comparator.compare(values[a]!!, values[b]!!) }
+
+        positions = sorted.toIntArray()
+        keys = Array(positions.size) { values[positions[it]] }
+        count = positions.size
+    }
+
+    val size: Int
+        get() = count
+
+    /**
+     * Adds the row that is in the position (null values are not indexed)
+     */
+    override fun insert(position: Int, row: T) {
+        val value = getter(row) ?: return
+
+        if (count == keys.size) {
+            val capacity = maxOf(16, count + (count shr 1))
+
+            keys = keys.copyOf(capacity)
+            positions = positions.copyOf(capacity)
+        }
+
+        val slot = upperBound(value)
+
+        System.arraycopy(keys, slot, keys, slot + 1, count - slot)
+        System.arraycopy(positions, slot, positions, slot + 1, count - slot)
+        keys[slot] = value
+        positions[slot] = position
+        count++
+    }
+
+    /**
+     * Removes the row that is in the position. The row must have the same value
+     * that it had when it was inserted.
+     */
+    override fun remove(position: Int, row: T) {
+        val value = getter(row) ?: return
+
+        if (count == 0) return
+
+        val to = upperBound(value)
+        var slot = lowerBound(value)
+
+        while (slot < to && positions[slot] != position) slot++
+        if (slot == to) return
+
+        System.arraycopy(keys, slot + 1, keys, slot, count - slot - 1)
+        System.arraycopy(positions, slot + 1, positions, slot, count - slot - 1)
+        count--
+        keys[count] = null
+    }
+
+    /**
+     * Returns the row positions (in data source order) that comply with the filter,
+     * or null if this index cannot answer the filter and a scan must be done.
+     */
+    fun lookup(filter: BeanFilter<*>): IntArray? {
+        if (count == 0)
+            return if (filter is EqFilter<*> || filter is OpFilter<*> || filter is StartsWithFilter<*>) IntArray(0) else null
+
+        return when (filter) {
+            is EqFilter<*> -> {
+                val value = key(filter.value) ?: return null
+
+                rows(lowerBound(value), upperBound(value))
+            }
+            is OpFilter<*> -> {
+                val value = key(filter.value) ?: return null
+
+                when (filter.operator) {
+                    CompareOperator.eq -> rows(lowerBound(value), upperBound(value))
+                    CompareOperator.gt -> rows(upperBound(value), count)
+                    CompareOperator.ge -> rows(lowerBound(value), count)
+                    CompareOperator.lt -> rows(0, lowerBound(value))
+                    CompareOperator.le -> rows(0, upperBound(value))
+                    CompareOperator.ne -> null
+                }
+            }
+            is StartsWithFilter<*> -> {
+                if (keys[0] !is String || filter.ignoreCase) return null
+
+                val prefix = filter.value.dropLast(1)
+                val from = lowerBound(prefix)
+
+                rows(from, prefixEnd(prefix, from))
+            }
+            else -> null
+        }
+    }
+
+    /**
+     * Converts the filter value to the type stored in the index. Returns null
+     * when no conversion is possible, so the caller falls back to the scan.
+     */
+    private fun key(value: Any?): Any? {
+        if (value == null) return null
+
+        return try {
+            type.converter(value)
+        } catch (e: RuntimeException) {
+            null
+        }
+    }
+
+    /**
+     * First position whose key is greater or equal than value
+     */
+    private fun lowerBound(value: Any): Int {
+        var low = 0
+        var high = count
+
+        while (low < high) {
+            val mid = (low + high) ushr 1
+
+            if (comparator.compare(keys[mid]!!, value) < 0) low = mid + 1 else high = mid
+        }
+
+        return low
+    }
+
+    /**
+     * First position whose key is strictly greater than value
+     */
+    private fun upperBound(value: Any): Int {
+        var low = 0
+        var high = count
+
+        while (low < high) {
+            val mid = (low + high) ushr 1
+
+            if (comparator.compare(keys[mid]!!, value) <= 0) low = mid + 1 else high = mid
+        }
+
+        return low
+    }
+
+    /**
+     * Keys that start with the prefix are contiguous from lowerBound(prefix), so we
+     * look for the first one that does not start with it.
+     */
+    private fun prefixEnd(prefix: String, from: Int): Int {
+        var low = from
+        var high = count
+
+        while (low < high) {
+            val mid = (low + high) ushr 1
+
+            if ((keys[mid] as String).startsWith(prefix)) low = mid + 1 else high = mid
+        }
+
+        return low
+    }
+
+    private fun rows(from: Int, to: Int): IntArray {
+        if (from >= to) return IntArray(0)
+
+        val res = positions.copyOfRange(from, to)
+
+        res.sort()
+
+        return res
+    }
+
+    companion object {
+        /**
+         * Intersection of two row position arrays sorted ascending
+         */
+        fun intersect(a: IntArray, b: IntArray): IntArray {
+            val res = IntArray(minOf(a.size, b.size))
+            var i = 0
+            var j = 0
+            var k = 0
+
+            while (i < a.size && j < b.size) {
+                when {
+                    a[i] < b[j] -> i++
+                    a[i] > b[j] -> j++
+                    else -> { res[k++] = a[i]; i++; j++ }
+                }
+            }
+
+            return res.copyOf(k)
+        }
+    }
+}
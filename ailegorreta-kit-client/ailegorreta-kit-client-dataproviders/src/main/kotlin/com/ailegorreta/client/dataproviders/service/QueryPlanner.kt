@@ -0,0 +1,183 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  QueryPlanner.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import com.github.mvysny.vokdataloader.*
+
+enum class Access { INDEX, BITMAP, TEXT_INDEX, SCAN }
+
+/**
+ * One conjunct of the filter with its estimated selectivity (fraction of rows that
+ * comply with it) and the relative cost to evaluate it for one row.
+ */
+class PlannedConjunct(val filter: Filter<*>, val selectivity: Double, val cost: Double, val access: Access) {
+    override fun toString() =
+        "$access $filter (selectivity ${"%.4f".format(selectivity)}, cost ${"%.1f".format(cost)})"
+}
+
+/**
+ * How InMemoryService evaluates a filter:
+ * - lookups: conjuncts resolved with an index, their positions (or bitmaps) are intersected.
+ * - predicates: conjuncts evaluated for each candidate row, in this order. The full
+ *   text conjuncts of a text indexed property are not included, since the TextIndex
+ *   verifies its candidates with the normalized values it keeps.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class QueryPlan(val filter: Filter<*>,
+                val rows: Int,
+                val lookups: List<PlannedConjunct>,
+                val predicates: List<PlannedConjunct>,
+                val selectivity: Double) {
+
+    val estimatedRows: Long
+        get() = Math.round(rows * selectivity)
+
+    override fun toString(): String {
+        val res = StringBuilder("Filter: $filter\n")
+
+        if (lookups.isEmpty())
+            res.append("Scan all the $rows rows\n")
+        else
+            lookups.forEach { res.append("Lookup $it\n") }
+        predicates.forEachIndexed { i, it -> res.append("  ${i + 1}. $it\n") }
+        res.append("Estimated result: $estimatedRows of $rows rows")
+
+        return res.toString()
+    }
+}
+
+/**
+ * Chooses how to evaluate a filter using the ColumnStatistics of the data source:
+ * - The conjuncts supported by a BitmapIndex are resolved with it unless they are
+ *   very broad, since the AND of bitmaps is cheap.
+ * - An index is used for the most selective indexed conjunct, unless it is too broad
+ *   (then reading its positions costs more than a scan). Other indexed conjuncts are
+ *   intersected only if they are very selective; otherwise they are evaluated
+ *   as predicates over the candidates.
+ * - The predicates are ordered by cost / (1 - selectivity), so the cheap and
+ *   selective conjuncts discard the rows first.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class QueryPlanner(private val statistics: Map<String, ColumnStatistics>,
+                   private val indexed: Set<String>,
+                   private val textIndexed: Set<String>,
+                   private val bitmapIndexed: Set<String> = emptySet()) {
+
+    fun plan(filter: Filter<*>, rows: Int): QueryPlan {
+        val conjuncts: Collection<Filter<*>> = if (filter is AndFilter<*>) filter.children else listOf(filter)
+        val planned = conjuncts.map { PlannedConjunct(it, selectivity(it), cost(it), Access.SCAN) }
+        val lookups = ArrayList<PlannedConjunct>()
+        val predicates = ArrayList<PlannedConjunct>()
+
+        planned.filter { it.selectivity <= MAX_BITMAP_SELECTIVITY && BitmapIndex.supports(it.filter, bitmapIndexed) }
+               .forEach { lookups.add(PlannedConjunct(it.filter, it.selectivity, it.cost, Access.BITMAP)) }
+        planned.filter { canUseIndex(it.filter) && lookups.none { l -> l.filter === it.filter } }
+               .sortedBy { it.selectivity }
+               .forEach {
+                   if (it.selectivity <= (if (lookups.isEmpty()) MAX_INDEX_SELECTIVITY else MAX_INTERSECT_SELECTIVITY))
+                       lookups.add(PlannedConjunct(it.filter, it.selectivity, it.cost, Access.INDEX))
+               }
+        planned.forEach { conjunct ->
+            if (lookups.none { it.filter === conjunct.filter }) {
+                if (conjunct.filter is FullTextFilter<*> && conjunct.filter.propertyName in textIndexed)
+                    lookups.add(PlannedConjunct(conjunct.filter, conjunct.selectivity, conjunct.cost, Access.TEXT_INDEX))
+                else
+                    predicates.add(conjunct)
+            }
+        }
+        predicates.sortBy { rank(it) }
+
+        return QueryPlan(filter, rows, lookups, predicates, planned.fold(1.0) { s, it -> s * it.selectivity })
+    }
+
+    private fun rank(conjunct: PlannedConjunct): Double =
+        if (conjunct.selectivity >= 1.0) Double.MAX_VALUE else conjunct.cost / (1.0 - conjunct.selectivity)
+
+    private fun canUseIndex(filter: Filter<*>): Boolean =
+        filter is BeanFilter<*> && filter.propertyName in indexed &&
+                (filter is EqFilter<*> ||
+                 (filter is OpFilter<*> && filter.operator != CompareOperator.ne) ||
+                 (filter is StartsWithFilter<*> && !filter.ignoreCase))
+
+    /**
+     * Estimated fraction of the rows that comply with the filter
+     */
+    fun selectivity(filter: Filter<*>): Double {
+        val res = when (filter) {
+            is AndFilter<*> -> filter.children.fold(1.0) { s, it -> s * selectivity(it) }
+            is OrFilter<*> -> 1.0 - filter.children.fold(1.0) { s, it -> s * (1.0 - selectivity(it)) }
+            is BeanFilter<*> -> {
+                val stats = statistics[filter.propertyName]
+
+                if (stats == null)
+                    DEFAULT_SELECTIVITY
+                else
+                    when (filter) {
+                        is IsNullFilter<*> -> stats.nullFraction
+                        is IsNotNullFilter<*> -> 1.0 - stats.nullFraction
+                        is EqFilter<*> -> stats.eqSelectivity(filter.value)
+                        is OpFilter<*> -> stats.rangeSelectivity(filter.value, filter.operator)
+                        is StartsWithFilter<*> ->
+                            if (filter.ignoreCase)
+                                DEFAULT_SELECTIVITY
+                            else {
+                                val prefix = filter.value.dropLast(1)
+
+                                stats.betweenSelectivity(prefix, prefix + Char.MAX_VALUE)
+                            }
+                        else -> DEFAULT_SELECTIVITY
+                    }
+            }
+            else -> DEFAULT_SELECTIVITY
+        }
+
+        return res.coerceIn(0.0, 1.0)
+    }
+
+    /**
+     * Relative cost to evaluate the filter for one row
+     */
+    fun cost(filter: Filter<*>): Double =
+        when (filter) {
+            is AndFilter<*> -> filter.children.sumOf { cost(it) }
+            is OrFilter<*> -> filter.children.sumOf { cost(it) }
+            is IsNullFilter<*>, is IsNotNullFilter<*>, is EqFilter<*> -> 1.0
+            is OpFilter<*> -> 1.5
+            is StartsWithFilter<*> -> if (filter.ignoreCase) 3.0 else 2.0
+            is FullTextFilter<*> -> 10.0
+            else -> 2.0
+        }
+
+    companion object {
+        const val DEFAULT_SELECTIVITY = 0.3
+        const val MAX_INDEX_SELECTIVITY = 0.25
+        const val MAX_INTERSECT_SELECTIVITY = 0.05
+        const val MAX_BITMAP_SELECTIVITY = 0.5
+    }
+}
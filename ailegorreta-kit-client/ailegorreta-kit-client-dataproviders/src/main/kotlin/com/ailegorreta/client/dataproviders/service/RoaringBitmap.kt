@@ -0,0 +1,338 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  RoaringBitmap.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+/**
+ * Compressed set of row positions (non-negative ints) in the Roaring style: the
+ * positions are grouped by its high 16 bits and each group is stored in the
+ * smallest container, a sorted array for up to 4096 positions or a 1024 words
+ * bitmap otherwise. So sparse values take two bytes per row and dense values one
+ * bit per row, and AND/OR are done container by container (word by word for the
+ * bitmaps).
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class RoaringBitmap private constructor(private var keys: CharArray,
+                                        private var containers: Array<Container?>,
+                                        private var size: Int) {
+
+    constructor(): this(CharArray(4), arrayOfNulls(4), 0)
+
+    fun add(x: Int) {
+        val key = (x ushr 16).toChar()
+        val i = findKey(key)
+
+        if (i >= 0)
+            containers[i] = containers[i]!!.add(x.toChar())
+        else
+            insertContainer(-i - 1, key, ArrayContainer().add(x.toChar()))
+    }
+
+    fun remove(x: Int) {
+        val i = findKey((x ushr 16).toChar())
+
+        if (i < 0) return
+
+        val container = containers[i]!!.remove(x.toChar())
+
+        if (container.cardinality == 0) {
+            System.arraycopy(keys, i + 1, keys, i, size - i - 1)
+            System.arraycopy(containers, i + 1, containers, i, size - i - 1)
+            containers[--size] = null
+        } else
+            containers[i] = container
+    }
+
+    operator fun contains(x: Int): Boolean {
+        val i = findKey((x ushr 16).toChar())
+
+        return i >= 0 && containers[i]!!.contains(x.toChar())
+    }
+
+    val cardinality: Int
+        get() {
+            var res = 0
+
+            for (i in 0 until size) res += containers[i]!!.cardinality
+
+            return res
+        }
+
+    fun and(other: RoaringBitmap): RoaringBitmap {
+        val res = RoaringBitmap()
+        var i = 0
+        var j = 0
+
+        while (i < size && j < other.size) {
+            when {
+                keys[i] < other.keys[j] -> i++
+                keys[i] > other.keys[j] -> j++
+                else -> {
+                    val container = containers[i]!!.and(other.containers[j]!!)
+
+                    if (container.cardinality > 0) res.insertContainer(res.size, keys[i], container)
+                    i++
+                    j++
+                }
+            }
+        }
+
+        return res
+    }
+
+    fun or(other: RoaringBitmap): RoaringBitmap {
+        val res = RoaringBitmap()
+        var i = 0
+        var j = 0
+
+        while (i < size || j < other.size) {
+            when {
+                j >= other.size || (i < size && keys[i] < other.keys[j]) -> {
+                    res.insertContainer(res.size, keys[i], containers[i]!!.copy())
+                    i++
+                }
+                i >= size || keys[i] > other.keys[j] -> {
+                    res.insertContainer(res.size, other.keys[j], other.containers[j]!!.copy())
+                    j++
+                }
+                else -> {
+                    res.insertContainer(res.size, keys[i], containers[i]!!.or(other.containers[j]!!))
+                    i++
+                    j++
+                }
+            }
+        }
+
+        return res
+    }
+
+    /**
+     * Sorted positions, the format used by the other indexes
+     */
+    fun toIntArray(): IntArray {
+        val res = IntArray(cardinality)
+        var n = 0
+
+        for (i in 0 until size) {
+            val high = keys[i].code shl 16
+
+            containers[i]!!.forEach { low -> res[n++] = high or low }
+        }
+
+        return res
+    }
+
+    private fun findKey(key: Char): Int {
+        var low = 0
+        var high = size - 1
+
+        while (low <= high) {
+            val mid = (low + high) ushr 1
+
+            if (keys[mid] < key) low = mid + 1 else if (keys[mid] > key) high = mid - 1 else return mid
+        }
+
+        return -(low + 1)
+    }
+
+    private fun insertContainer(at: Int, key: Char, container: Container) {
+        if (size == keys.size) {
+            keys = keys.copyOf(size * 2)
+            containers = containers.copyOf(size * 2)
+        }
+        System.arraycopy(keys, at, keys, at + 1, size - at)
+        System.arraycopy(containers, at, containers, at + 1, size - at)
+        keys[at] = key
+        containers[at] = container
+        size++
+    }
+
+    /**
+     * Low 16 bits of the positions of one group. The operations return the container
+     * to use from now on, so it can change between array and bitmap.
+     */
+    private abstract class Container {
+        abstract val cardinality: Int
+
+        abstract fun add(x: Char): Container
+
+        abstract fun remove(x: Char): Container
+
+        abstract fun contains(x: Char): Boolean
+
+        abstract fun forEach(action: (Int) -> Unit)
+
+        abstract fun copy(): Container
+
+        abstract fun toBitmap(): BitmapContainer
+
+        fun and(other: Container): Container =
+            when {
+                this is ArrayContainer -> filter(other)
+                other is ArrayContainer -> other.filter(this)
+                else -> (this as BitmapContainer).combine(other as BitmapContainer) { a, b -> a and b }
+            }
+
+        fun or(other: Container): Container =
+            if (this is ArrayContainer && other is ArrayContainer && cardinality + other.cardinality <= ARRAY_MAX) {
+                val res = ArrayContainer()
+
+                forEach { res.add(it.toChar()) }
+                other.forEach { res.add(it.toChar()) }
+                res
+            } else
+                toBitmap().combine(other.toBitmap()) { a, b -> a or b }
+    }
+
+    private class ArrayContainer(private var values: CharArray = CharArray(4), override var cardinality: Int = 0): Container() {
+
+        override fun add(x: Char): Container {
+            val i = search(x)
+
+            if (i >= 0) return this
+            if (cardinality == ARRAY_MAX) return toBitmap().add(x)
+            if (cardinality == values.size) values = values.copyOf(minOf(ARRAY_MAX, maxOf(4, cardinality * 2)))
+
+            val at = -i - 1
+
+            System.arraycopy(values, at, values, at + 1, cardinality - at)
+            values[at] = x
+            cardinality++
+
+            return this
+        }
+
+        override fun remove(x: Char): Container {
+            val i = search(x)
+
+            if (i >= 0) {
+                System.arraycopy(values, i + 1, values, i, cardinality - i - 1)
+                cardinality--
+            }
+
+            return this
+        }
+
+        override fun contains(x: Char) = search(x) >= 0
+
+        override fun forEach(action: (Int) -> Unit) {
+            for (i in 0 until cardinality) action(values[i].code)
+        }
+
+        override fun copy(): Container = ArrayContainer(values.copyOf(), cardinality)
+
+        override fun toBitmap(): BitmapContainer {
+            val res = BitmapContainer()
+
+            forEach { res.add(it.toChar()) }
+
+            return res
+        }
+
+        /**
+         * The values that are in the other container
+         */
+        fun filter(other: Container): Container {
+            val res = CharArray(cardinality)
+            var n = 0
+
+            for (i in 0 until cardinality)
+                if (other.contains(values[i])) res[n++] = values[i]
+
+            return ArrayContainer(res, n)
+        }
+
+        private fun search(x: Char) = values.binarySearch(x, 0, cardinality)
+    }
+
+    private class BitmapContainer(private val words: LongArray = LongArray(1024), override var cardinality: Int = 0): Container() {
+
+        override fun add(x: Char): Container {
+            val i = x.code ushr 6
+            val bit = 1L shl x.code
+
+            if ((words[i] and bit) == 0L) {
+                words[i] = words[i] or bit
+                cardinality++
+            }
+
+            return this
+        }
+
+        override fun remove(x: Char): Container {
+            val i = x.code ushr 6
+            val bit = 1L shl x.code
+
+            if ((words[i] and bit) != 0L) {
+                words[i] = words[i] and bit.inv()
+                cardinality--
+                if (cardinality <= ARRAY_MAX / 2) return toArray()
+            }
+
+            return this
+        }
+
+        override fun contains(x: Char) = (words[x.code ushr 6] and (1L shl x.code)) != 0L
+
+        override fun forEach(action: (Int) -> Unit) {
+            for (i in words.indices) {
+                var word = words[i]
+
+                while (word != 0L) {
+                    action((i shl 6) + java.lang.Long.numberOfTrailingZeros(word))
+                    word = word and (word - 1)
+                }
+            }
+        }
+
+        override fun copy(): Container = BitmapContainer(words.copyOf(), cardinality)
+
+        override fun toBitmap() = this
+
+        fun combine(other: BitmapContainer, op: (Long, Long) -> Long): Container {
+            val res = LongArray(1024)
+            var count = 0
+
+            for (i in res.indices) {
+                res[i] = op(words[i], other.words[i])
+                count += java.lang.Long.bitCount(res[i])
+            }
+
+            val bitmap = BitmapContainer(res, count)
+
+            return if (count <= ARRAY_MAX) bitmap.toArray() else bitmap
+        }
+
+        private fun toArray(): Container {
+            val res = ArrayContainer()
+
+            forEach { res.add(it.toChar()) }
+
+            return res
+        }
+    }
+}
+
+private const val ARRAY_MAX = 4096
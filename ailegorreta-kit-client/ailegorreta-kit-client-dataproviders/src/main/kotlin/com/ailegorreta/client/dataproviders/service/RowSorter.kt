@@ -0,0 +1,282 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  RowSorter.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import com.ailegorreta.commons.dtomappers.PropertyAccessor
+import com.github.mvysny.vokdataloader.SortClause
+import java.util.BitSet
+
+/**
+ * Comparator for all the sort clauses requested by the Grid, in order. Null
+ * values are sorted first in ascending order. The values are compared with the
+ * ValueType of the declared type of each property.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class MultiPropertyComparator<T>(private val props: List<PropertyAccessor<T>>,
+                                 private val sortBy: List<SortClause>): Comparator<T> {
+
+    private val types = props.map { ValueTypes.of(it.type) }
+
+    override fun compare(o1: T, o2: T): Int {
+        for (i in props.indices) {
+            val val1 = props[i].get(o1)
+            val val2 = props[i].get(o2)
+            val r = when {
+                        val1 === val2 -> 0
+                        val1 == null -> -1
+                        val2 == null -> 1
+                        else -> types[i].comparator.compare(val1, val2)
+                    }
+
+            if (r != 0)
+                return if (sortBy[i].asc) r else -r
+        }
+
+        return 0
+    }
+
+    /**
+     * Comparator of the positions of the rows (ties resolved by position). The
+     * values are extracted only once: to a LongArray or DoubleArray when the type has
+     * a primitive key, so the comparisons of the sort do not read the DTOs nor box.
+     */
+    fun positionComparator(rows: List<T>): IntComparator {
+        val keys = props.indices.map { i -> SortKeys.of(rows, props[i], types[i]) }.toTypedArray()
+        val asc = BooleanArray(keys.size) { sortBy[it].asc }
+
+        return IntComparator { a, b ->
+            for (i in keys.indices) {
+                val r = keys[i].compare(a, b)
+
+                if (r != 0)
+                    return@IntComparator if (asc[i]) r else -r
+            }
+            a.compareTo(b)
+        }
+    }
+
+    /**
+     * Values of one property for all the rows to sort
+     */
+    private abstract class SortKeys(protected val nulls: BitSet) {
+
+        fun compare(a: Int, b: Int): Int {
+            val nullA = nulls.get(a)
+            val nullB = nulls.get(b)
+
+            return when {
+                nullA && nullB -> 0
+                nullA -> -1
+                nullB -> 1
+                else -> compareKeys(a, b)
+            }
+        }
+
+        abstract fun compareKeys(a: Int, b: Int): Int
+
+        companion object {
+            fun <T> of(rows: List<T>, prop: PropertyAccessor<T>, type: ValueType): SortKeys {
+                val nulls = BitSet(rows.size)
+                val values = arrayOfNulls<Any>(rows.size)
+
+                rows.forEachIndexed { i, row ->
+                    values[i] = prop.get(row)
+                    if (values[i] == null) nulls.set(i)
+                }
+
+                val longKey = type.longKey
+                val doubleKey = type.doubleKey
+
+                return when {
+                    longKey != null -> LongKeys(nulls, LongArray(rows.size) { values[it]?.let(longKey) ?: 0L })
+                    doubleKey != null -> DoubleKeys(nulls, DoubleArray(rows.size) { values[it]?.let(doubleKey) ?: 0.0 })
+                    else -> ObjectKeys(nulls, values, type.comparator)
+                }
+            }
+        }
+    }
+
+    private class LongKeys(nulls: BitSet, private val keys: LongArray): SortKeys(nulls) {
+        override fun compareKeys(a: Int, b: Int) = keys[a].compareTo(keys[b])
+    }
+
+    private class DoubleKeys(nulls: BitSet, private val keys: DoubleArray): SortKeys(nulls) {
+        override fun compareKeys(a: Int, b: Int) = keys[a].compareTo(keys[b])
+    }
+
+    private class ObjectKeys(nulls: BitSet, private val values: Array<Any?>,
+                             private val comparator: Comparator<Any>): SortKeys(nulls) {
+        override fun compareKeys(a: Int, b: Int) = comparator.compare(values[a]!!, values[b]!!)
+    }
+}
+
+/**
+ * Comparator of row positions without boxing them
+ */
+fun interface IntComparator {
+    fun compare(a: Int, b: Int): Int
+}
+
+/**
+ * Sorts the rows of a filter result as a permutation of its positions. Ties are
+ * resolved by the position in the result, so a partial (top-K) sort and a full
+ * sort always return the same order and the paging is deterministic.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+object RowSorter {
+
+    /**
+     * Full sort. The returned permutation can be cached and reused for any page.
+     * If an executor is received the sort is done in parallel.
+     */
+    fun <T> sort(rows: List<T>, comparator: MultiPropertyComparator<T>, executor: ParallelExecutor? = null): IntArray =
+        sort(rows.size, comparator.positionComparator(rows), executor)
+
+    /**
+     * Full sort of the positions 0 until size, compared without boxing (merge sort
+     * over an IntArray). The comparator must resolve the ties by position.
+     */
+    fun sort(size: Int, comparator: IntComparator, executor: ParallelExecutor? = null): IntArray {
+        val positions = IntArray(size) { it }
+
+        if (executor != null)
+            executor.sort(positions, comparator)
+        else
+            mergeSort(positions, IntArray(size), 0, size, comparator)
+
+        return positions
+    }
+
+    /**
+     * Partial sort: returns only the first k positions in order. It keeps a bounded
+     * max-heap of k positions, so it costs O(n log k) instead of O(n log n).
+     */
+    fun <T> topK(rows: List<T>, comparator: MultiPropertyComparator<T>, k: Int): IntArray =
+        topK(rows.size, comparator.positionComparator(rows), k)
+
+    /**
+     * Same as topK of the rows, for the positions 0 until rowCount
+     */
+    fun topK(rowCount: Int, cmp: IntComparator, k: Int): IntArray {
+        val size = minOf(k, rowCount)
+
+        if (size <= 0) return IntArray(0)
+
+        val heap = IntArray(size)
+        var count = 0
+
+        for (i in 0 until rowCount) {
+            if (count < size) {
+                heap[count] = i
+                siftUp(heap, count++, cmp)
+            } else if (cmp.compare(i, heap[0]) < 0) {
+                heap[0] = i
+                siftDown(heap, size, cmp)
+            }
+        }
+        mergeSort(heap, IntArray(size), 0, size, cmp)
+
+        return heap
+    }
+
+    internal fun mergeSort(a: IntArray, buffer: IntArray, from: Int, to: Int, cmp: IntComparator) {
+        if (to - from <= INSERTION_SORT_SIZE) {
+            for (i in from + 1 until to) {
+                val x = a[i]
+                var j = i - 1
+
+                while (j >= from && cmp.compare(a[j], x) > 0) {
+                    a[j + 1] = a[j]
+                    j--
+                }
+                a[j + 1] = x
+            }
+            return
+        }
+
+        val middle = (from + to) ushr 1
+
+        mergeSort(a, buffer, from, middle, cmp)
+        mergeSort(a, buffer, middle, to, cmp)
+        merge(a, buffer, from, middle, to, cmp)
+    }
+
+    /**
+     * Merges the sorted ranges from..middle and middle..to
+     */
+    internal fun merge(a: IntArray, buffer: IntArray, from: Int, middle: Int, to: Int, cmp: IntComparator) {
+        if (cmp.compare(a[middle - 1], a[middle]) <= 0) return     // already in order
+
+        System.arraycopy(a, from, buffer, from, to - from)
+
+        var i = from
+        var j = middle
+
+        for (k in from until to)
+            a[k] = if (j >= to || (i < middle && cmp.compare(buffer[i], buffer[j]) <= 0)) buffer[i++] else buffer[j++]
+    }
+
+    private fun siftUp(heap: IntArray, pos: Int, cmp: IntComparator) {
+        var child = pos
+
+        while (child > 0) {
+            val parent = (child - 1) ushr 1
+
+            if (cmp.compare(heap[child], heap[parent]) <= 0) return
+            swap(heap, child, parent)
+            child = parent
+        }
+    }
+
+    private fun siftDown(heap: IntArray, size: Int, cmp: IntComparator) {
+        var parent = 0
+
+        while (true) {
+            val left = 2 * parent + 1
+
+            if (left >= size) return
+
+            val right = left + 1
+            val largest = if (right < size && cmp.compare(heap[right], heap[left]) > 0) right else left
+
+            if (cmp.compare(heap[largest], heap[parent]) <= 0) return
+            swap(heap, largest, parent)
+            parent = largest
+        }
+    }
+
+    private fun swap(heap: IntArray, i: Int, j: Int) {
+        val tmp = heap[i]
+
+        heap[i] = heap[j]
+        heap[j] = tmp
+    }
+
+    private const val INSERTION_SORT_SIZE = 16
+}
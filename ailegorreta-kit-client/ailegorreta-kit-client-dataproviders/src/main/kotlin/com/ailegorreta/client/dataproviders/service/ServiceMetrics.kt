@@ -0,0 +1,137 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  ServiceMetrics.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import io.micrometer.core.instrument.DistributionSummary
+import io.micrometer.core.instrument.Gauge
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.Timer
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+
+/**
+ * Micrometer meters of one InMemoryService, all of them tagged with the service
+ * class name:
+ * - inmemory.service.filter, .sort and .page: timers of each phase of a query.
+ * - inmemory.service.rows.scanned and .rows.returned: rows evaluated by the filter
+ *   predicate (after the index lookup) and rows that passed it.
+ * - inmemory.service.dataset.size, .cache.hit.ratio and .cache.rows: gauges.
+ *
+ * The meters are shared by all the instances of the same service class (e.g., one per
+ * session): Micrometer returns the registered meter for the same name and tags, so the
+ * gauges are registered once and read the total of all the live instances.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class ServiceMetrics(registry: MeterRegistry, service: InMemoryService<*>) {
+
+    private val serviceName = service.javaClass.simpleName
+
+    private val filterTimer = Timer.builder("inmemory.service.filter")
+                                   .description("Time to filter the data source")
+                                   .tag(SERVICE_TAG, serviceName)
+                                   .register(registry)
+    private val sortTimer = Timer.builder("inmemory.service.sort")
+                                 .description("Time to sort the filter result")
+                                 .tag(SERVICE_TAG, serviceName)
+                                 .register(registry)
+    private val pageTimer = Timer.builder("inmemory.service.page")
+                                 .description("Time to extract the requested page")
+                                 .tag(SERVICE_TAG, serviceName)
+                                 .register(registry)
+    private val rowsScanned = DistributionSummary.builder("inmemory.service.rows.scanned")
+                                                 .description("Rows evaluated by the filter predicate")
+                                                 .tag(SERVICE_TAG, serviceName)
+                                                 .register(registry)
+    private val rowsReturned = DistributionSummary.builder("inmemory.service.rows.returned")
+                                                  .description("Rows in the filter result")
+                                                  .tag(SERVICE_TAG, serviceName)
+                                                  .register(registry)
+
+    init {
+        liveServices.computeIfAbsent(Pair(registry, serviceName)) { LiveServices().also { it.register(registry, serviceName) } }
+                    .add(service)
+    }
+
+    fun filter(startNanos: Long, scanned: Int, returned: Int) {
+        filterTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS)
+        rowsScanned.record(scanned.toDouble())
+        rowsReturned.record(returned.toDouble())
+    }
+
+    fun sort(startNanos: Long) = sortTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS)
+
+    fun page(startNanos: Long) = pageTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS)
+
+    /**
+     * Instances of a service class, weakly referenced so a discarded service stops
+     * counting. The gauges hold this object strongly.
+     */
+    private class LiveServices {
+        private val services = Collections.newSetFromMap(WeakHashMap<InMemoryService<*>, Boolean>())
+
+        @Synchronized
+        fun add(service: InMemoryService<*>) {
+            services.add(service)
+        }
+
+        fun register(registry: MeterRegistry, serviceName: String) {
+            Gauge.builder("inmemory.service.dataset.size", this) { it.sum { service -> service.dataSource.size.toLong() } }
+                 .description("Rows in the data sources")
+                 .tag(SERVICE_TAG, serviceName)
+                 .strongReference(true)
+                 .register(registry)
+            Gauge.builder("inmemory.service.cache.hit.ratio", this) { it.hitRatio() }
+                 .description("Hit ratio of the filter result caches")
+                 .tag(SERVICE_TAG, serviceName)
+                 .strongReference(true)
+                 .register(registry)
+            Gauge.builder("inmemory.service.cache.rows", this) { it.sum { service -> service.filterCacheStats().rows } }
+                 .description("Rows held by the filter result caches")
+                 .tag(SERVICE_TAG, serviceName)
+                 .strongReference(true)
+                 .register(registry)
+        }
+
+        @Synchronized
+        fun sum(value: (InMemoryService<*>) -> Long): Double = services.sumOf(value).toDouble()
+
+        @Synchronized
+        fun hitRatio(): Double {
+            val stats = services.map { it.filterCacheStats() }
+            val hits = stats.sumOf { it.hits }
+            val requests = hits + stats.sumOf { it.misses }
+
+            return if (requests == 0L) 0.0 else hits.toDouble() / requests
+        }
+    }
+
+    companion object {
+        const val SERVICE_TAG = "service"
+
+        private val liveServices = ConcurrentHashMap<Pair<MeterRegistry, String>, LiveServices>()
+    }
+}
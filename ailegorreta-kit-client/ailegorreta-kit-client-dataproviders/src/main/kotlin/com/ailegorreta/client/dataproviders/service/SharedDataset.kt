@@ -0,0 +1,151 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  SharedDataset.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import com.ailegorreta.commons.dtomappers.FilteredDTO
+import com.ailegorreta.commons.dtomappers.PropertyAccessors
+import java.util.*
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Immutable version of a data source with its indexes and statistics. It can be read by any
+ * number of InMemoryService instances (i.e., Vaadin sessions) at the same time.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class DatasetSnapshot<T> internal constructor(val version: Long,
+                                              val rows: List<T>,
+                                              val indexes: Map<String, PropertyIndex<T>>,
+                                              val textIndexes: Map<String, TextIndex<T>>,
+                                              val bitmapIndexes: Map<String, BitmapIndex<T>>,
+                                              val statistics: Map<String, ColumnStatistics>) {
+
+    companion object {
+        fun <T : FilteredDTO<T>> buildIndexes(rows: List<T>, indexed: Set<String>): Map<String, PropertyIndex<T>> {
+            if (indexed.isEmpty() || rows.isEmpty())
+                return HashMap()
+
+            val properties = PropertyAccessors.of(rows.first())
+
+            return indexed.associateWith { propName ->
+                val prop = properties[propName]
+                        ?: throw IllegalArgumentException("Property $propName not declare as filterable")
+
+                PropertyIndex(propName, rows, { p -> prop.get(p) }, ValueTypes.of(prop.type))
+            }
+        }
+
+        fun <T : FilteredDTO<T>> buildBitmapIndexes(rows: List<T>, indexed: Set<String>): Map<String, BitmapIndex<T>> {
+            if (indexed.isEmpty() || rows.isEmpty())
+                return HashMap()
+
+            val properties = PropertyAccessors.of(rows.first())
+
+            return indexed.associateWith { propName ->
+                val prop = properties[propName]
+                        ?: throw IllegalArgumentException("Property $propName not declare as filterable")
+
+                BitmapIndex(propName, rows, { p -> prop.get(p) }, ValueTypes.of(prop.type))
+            }
+        }
+
+        fun <T : FilteredDTO<T>> buildTextIndexes(rows: List<T>, indexed: Set<String>): Map<String, TextIndex<T>> {
+            if (indexed.isEmpty() || rows.isEmpty())
+                return HashMap()
+
+            val properties = PropertyAccessors.of(rows.first())
+
+            return indexed.associateWith { propName ->
+                val prop = properties[propName]
+                        ?: throw IllegalArgumentException("Property $propName not declare as filterable")
+
+                TextIndex(propName, rows) { p -> prop.get(p) }
+            }
+        }
+    }
+}
+
+/**
+ * Holder of the current DatasetSnapshot of a reference data source shared by
+ * all the sessions, typically a Spring singleton bean. Each session keeps its own
+ * InMemoryService (filter and sort state and caches) bound to this holder with
+ * InMemoryService.useSharedDataset(), so the rows and indexes exist only once.
+ *
+ * The changes are copy-on-write: a new snapshot (with new indexes) is built and
+ * swapped atomically, the readers keep using the previous one until their next
+ * fetch or getCount.
+ *
+ *  Usage example:
+ *
+ *      @Bean
+ *      fun companies() = SharedDataset<CompanyDTO>(indexedProperties = setOf("id", "nombre"))
+ *
+ *      companies.publish(companyService.allCompanies())
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class SharedDataset<T : FilteredDTO<T>>(private val indexedProperties: Set<String> = emptySet(),
+                                        private val textIndexedProperties: Set<String> = emptySet(),
+                                        private val bitmapIndexedProperties: Set<String> = emptySet()) {
+
+    private val current = AtomicReference(DatasetSnapshot<T>(0L, emptyList(), HashMap(), HashMap(), HashMap(), HashMap()))
+
+    fun snapshot(): DatasetSnapshot<T> = current.get()
+
+    /**
+     * Builds a new version with its indexes and makes it the current one. The
+     * list is copied, so the caller can keep modifying it.
+     */
+    @Synchronized
+    fun publish(rows: List<T>): DatasetSnapshot<T> = swap(ArrayList(rows))
+
+    /**
+     * Copy-on-write change of the current rows, e.g. modify { it.add(item) }
+     */
+    @Synchronized
+    fun modify(change: (MutableList<T>) -> Unit): DatasetSnapshot<T> {
+        val rows = ArrayList(current.get().rows)
+
+        change(rows)
+
+        return swap(rows)
+    }
+
+    private fun swap(rows: ArrayList<T>): DatasetSnapshot<T> {
+        val data = Collections.unmodifiableList(rows)
+        val snapshot = DatasetSnapshot(current.get().version + 1,
+                                       data,
+                                       DatasetSnapshot.buildIndexes(data, indexedProperties),
+                                       DatasetSnapshot.buildTextIndexes(data, textIndexedProperties),
+                                       DatasetSnapshot.buildBitmapIndexes(data, bitmapIndexedProperties),
+                                       ColumnStatistics.of(data))
+
+        current.set(snapshot)
+
+        return snapshot
+    }
+}
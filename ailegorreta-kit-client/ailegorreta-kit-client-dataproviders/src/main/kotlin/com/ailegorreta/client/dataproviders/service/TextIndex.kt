@@ -0,0 +1,196 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  TextIndex.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import com.github.mvysny.vokdataloader.FullTextFilter
+import java.text.Normalizer
+
+/**
+ * Inverted index for the full text search over one string property. Every word
+ * of the (normalized) value is split in trigrams and each trigram keeps the sorted
+ * positions of the rows that contain it (the posting list).
+ *
+ * A FullTextFilter word of three or more characters is answered intersecting the
+ * posting lists of its trigrams. That is a superset of the rows (the trigrams can be
+ * in a different order), so the candidates are verified with the normalized value of
+ * each row, kept by the index, and the values are not normalized again per query.
+ * If no word has three or more characters all the normalized values are checked.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class TextIndex<T>(val propertyName: String, rows: List<T>, private val getter: (T) -> Any?): RowIndex<T> {
+
+    private val postings = HashMap<String, IntArray>()
+    private val counts = HashMap<String, Int>()
+    private val normalized = ArrayList<String?>(rows.size)
+
+    init {
+        rows.forEachIndexed { i, row ->
+            val text = normalized(getter(row))
+
+            normalized.add(text)
+            trigrams(text).forEach { append(it, i) }
+        }
+        postings.replaceAll { trigram, posting -> posting.copyOf(counts[trigram]!!) }
+        counts.clear()
+    }
+
+    /**
+     * Rows are processed in order, so appending keeps the posting list sorted.
+     */
+    private fun append(trigram: String, position: Int) {
+        val posting = postings[trigram]
+        val count = counts[trigram] ?: 0
+
+        if (posting == null) {
+            postings[trigram] = intArrayOf(position, 0, 0, 0)
+        } else {
+            if (posting[count - 1] == position) return
+            if (count == posting.size)
+                postings[trigram] = posting.copyOf(count * 2).also { it[count] = position }
+            else
+                posting[count] = position
+        }
+        counts[trigram] = count + 1
+    }
+
+    override fun insert(position: Int, row: T) {
+        val text = normalized(getter(row))
+
+        if (position == normalized.size) normalized.add(text) else normalized[position] = text
+        trigrams(text).forEach { trigram ->
+            val posting = postings[trigram] ?: IntArray(0)
+            val slot = posting.binarySearch(position)
+
+            if (slot < 0) {
+                val at = -slot - 1
+                val res = IntArray(posting.size + 1)
+
+                System.arraycopy(posting, 0, res, 0, at)
+                res[at] = position
+                System.arraycopy(posting, at, res, at + 1, posting.size - at)
+                postings[trigram] = res
+            }
+        }
+    }
+
+    /**
+     * The positions are removed from the end (see InMemoryService.removeRow), a removed
+     * position in the middle is inserted again
+     */
+    override fun remove(position: Int, row: T) {
+        val text = normalized[position]
+
+        if (position == normalized.size - 1) normalized.removeAt(position) else normalized[position] = null
+        trigrams(text).forEach { trigram ->
+            val posting = postings[trigram] ?: return@forEach
+            val slot = posting.binarySearch(position)
+
+            if (slot >= 0) {
+                if (posting.size == 1)
+                    postings.remove(trigram)
+                else {
+                    val res = IntArray(posting.size - 1)
+
+                    System.arraycopy(posting, 0, res, 0, slot)
+                    System.arraycopy(posting, slot + 1, res, slot, posting.size - slot - 1)
+                    postings[trigram] = res
+                }
+            }
+        }
+    }
+
+    /**
+     * Row positions (sorted) that comply with the full text filter, or null if the
+     * value of the filter is not a string.
+     */
+    fun lookup(filter: FullTextFilter<*>): IntArray? {
+        val words = words(filter.value as? String ?: return null)
+        var candidates: IntArray? = null
+
+        words.filter { it.length >= 3 }.forEach { word ->
+            val lists = wordTrigrams(word).map { postings[it] ?: return IntArray(0) }
+                                          .sortedBy { it.size }
+
+            lists.forEach { candidates = if (candidates == null) it else PropertyIndex.intersect(candidates!!, it) }
+        }
+
+        return verify(candidates, words)
+    }
+
+    /**
+     * The candidates (or all the positions if null) whose normalized value contains all the words
+     */
+    private fun verify(candidates: IntArray?, words: List<String>): IntArray {
+        val size = candidates?.size ?: normalized.size
+        val res = IntArray(size)
+        var count = 0
+
+        for (i in 0 until size) {
+            val position = candidates?.get(i) ?: i
+            val text = normalized[position] ?: continue
+
+            if (words.all { text.contains(it) }) res[count++] = position
+        }
+
+        return res.copyOf(count)
+    }
+
+    companion object {
+        private val MARKS = Regex("\\p{M}+")
+        private val SEPARATORS = Regex("[^\\p{L}\\p{N}]+")
+
+        /**
+         * Lower case and without accents, so 'García' matches 'garcia'
+         */
+        fun normalize(text: String): String =
+            MARKS.replace(Normalizer.normalize(text, Normalizer.Form.NFD), "").lowercase()
+
+        fun words(text: String): List<String> = split(normalize(text))
+
+        private fun split(normalized: String): List<String> = normalized.split(SEPARATORS).filter { it.isNotEmpty() }
+
+        private fun normalized(value: Any?): String? = (value as? String)?.let { normalize(it) }
+
+        private fun wordTrigrams(word: String): Set<String> {
+            val res = HashSet<String>()
+
+            for (i in 0..word.length - 3)
+                res.add(word.substring(i, i + 3))
+
+            return res
+        }
+
+        private fun trigrams(normalized: String?): Set<String> {
+            if (normalized == null) return emptySet()
+
+            val res = HashSet<String>()
+
+            split(normalized).forEach { res.addAll(wordTrigrams(it)) }
+
+            return res
+        }
+    }
+}
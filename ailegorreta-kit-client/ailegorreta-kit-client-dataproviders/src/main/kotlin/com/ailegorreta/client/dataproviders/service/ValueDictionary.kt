@@ -0,0 +1,107 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  ValueDictionary.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+/**
+ * One value of a property and the number of rows that have it
+ */
+data class DistinctValue(val value: Any?, val count: Long)
+
+/**
+ * Sorted distinct values of one property with its counts, used to fill the
+ * drop-downs of the filter bars (see InMemoryService.distinctValues).
+ *
+ * The String values are sorted ignoring case, so a prefix typed by the user is
+ * found with a binary search instead of checking every value. For the other types
+ * the prefix is compared with the toString() of the value. The null value (if any)
+ * is kept apart and it is returned first only when there is no prefix.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class ValueDictionary(groups: Map<Any?, Long>, comparator: Comparator<Any>) {
+
+    private val values: Array<Any>
+    private val counts: LongArray
+    private val nullCount = groups[null] ?: 0L
+    private val strings: Boolean
+
+    init {
+        val keys = groups.keys.filterNotNull()
+
+        strings = keys.isNotEmpty() && keys.all { it is String }
+        values = if (strings) keys.sortedWith(compareBy(String.CASE_INSENSITIVE_ORDER) { it as String }
+                                                  .thenBy { it as String }).toTypedArray()
+                 else keys.sortedWith(comparator).toTypedArray()
+        counts = LongArray(values.size) { groups[values[it]]!! }
+    }
+
+    val size: Int
+        get() = values.size + if (nullCount > 0) 1 else 0
+
+    /**
+     * Up to limit values that start with the prefix (ignoring case), in order
+     */
+    fun values(prefix: String?, limit: Int): List<DistinctValue> {
+        val res = ArrayList<DistinctValue>(minOf(limit, size))
+
+        if (prefix.isNullOrEmpty()) {
+            if (nullCount > 0 && limit > 0) res.add(DistinctValue(null, nullCount))
+            for (i in values.indices) {
+                if (res.size >= limit) break
+                res.add(DistinctValue(values[i], counts[i]))
+            }
+        } else if (strings) {
+            var i = lowerBound(prefix)
+
+            while (i < values.size && res.size < limit && (values[i] as String).startsWith(prefix, ignoreCase = true)) {
+                res.add(DistinctValue(values[i], counts[i]))
+                i++
+            }
+        } else
+            for (i in values.indices) {
+                if (res.size >= limit) break
+                if (values[i].toString().startsWith(prefix, ignoreCase = true))
+                    res.add(DistinctValue(values[i], counts[i]))
+            }
+
+        return res
+    }
+
+    /**
+     * First String value not lower than the prefix (ignoring case)
+     */
+    private fun lowerBound(prefix: String): Int {
+        var low = 0
+        var high = values.size
+
+        while (low < high) {
+            val mid = (low + high) ushr 1
+
+            if (String.CASE_INSENSITIVE_ORDER.compare(values[mid] as String, prefix) < 0) low = mid + 1 else high = mid
+        }
+
+        return low
+    }
+}
@@ -0,0 +1,156 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  ValueTypes.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import java.math.BigDecimal
+import java.time.Instant
+import java.time.LocalDate
+import java.time.LocalDateTime
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * How the values of one property type are compared and how a filter value is
+ * converted to that type.
+ *
+ * longKey (or doubleKey) maps the value to a primitive that keeps the same order,
+ * so the sorts can extract the keys once and compare them without boxing.
+ *
+ * hashKey maps the values that the comparator finds equal to the same hash map key
+ * (e.g. BigDecimal 1.0 and 1.00), so the equality is the same in the hash indexes.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class ValueType(val comparator: Comparator<Any>,
+                val converter: (Any) -> Any,
+                val longKey: ((Any) -> Long)? = null,
+                val doubleKey: ((Any) -> Double)? = null,
+                val hashKey: (Any) -> Any = { it })
+
+/**
+ * Registry of the ValueType for each property type. It is resolved once per property
+ * from the declared type of its PropertyAccessor, instead of checking the class of
+ * the values in every comparison. Primitive types and its wrappers share the same
+ * ValueType (so nullable properties are covered too).
+ *
+ * Properties with an unknown type (e.g., Object when the getter could not be
+ * resolved) use the dynamic ValueType, that checks the class of each value.
+ *
+ * Other types can be added with register().
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+object ValueTypes {
+
+    @Suppress("UNCHECKED_CAST")
+    private val natural = naturalOrder<Comparable<Any>>() as Comparator<Any>
+
+    private val registry = ConcurrentHashMap<Class<*>, ValueType>()
+
+    /**
+     * Checks the class of the values in each comparison (see InMemoryService.compareValues)
+     */
+    val dynamic = ValueType(Comparator { a, b -> InMemoryService.compareValues(a, b) },
+                            { value -> value })
+
+    init {
+        val long = ValueType(natural, { v -> if (v is Number) v.toLong() else v.toString().toLong() },
+                             longKey = { v -> v as Long })
+        val int = ValueType(natural, { v -> if (v is Number) v.toInt() else v.toString().toInt() },
+                            longKey = { v -> (v as Int).toLong() })
+        val short = ValueType(natural, { v -> if (v is Number) v.toShort() else v.toString().toShort() },
+                              longKey = { v -> (v as Short).toLong() })
+        val byte = ValueType(natural, { v -> if (v is Number) v.toByte() else v.toString().toByte() },
+                             longKey = { v -> (v as Byte).toLong() })
+        val double = ValueType(natural, { v -> if (v is Number) v.toDouble() else v.toString().toDouble() },
+                               doubleKey = { v -> v as Double })
+        val float = ValueType(natural, { v -> if (v is Number) v.toFloat() else v.toString().toFloat() },
+                              doubleKey = { v -> (v as Float).toDouble() })
+        val boolean = ValueType(natural, { v -> if (v is Boolean) v else v.toString().toBoolean() },
+                                longKey = { v -> if (v as Boolean) 1L else 0L })
+
+        register(Long::class.javaObjectType, long)
+        register(Long::class.javaPrimitiveType!!, long)
+        register(Int::class.javaObjectType, int)
+        register(Int::class.javaPrimitiveType!!, int)
+        register(Short::class.javaObjectType, short)
+        register(Short::class.javaPrimitiveType!!, short)
+        register(Byte::class.javaObjectType, byte)
+        register(Byte::class.javaPrimitiveType!!, byte)
+        register(Double::class.javaObjectType, double)
+        register(Double::class.javaPrimitiveType!!, double)
+        register(Float::class.javaObjectType, float)
+        register(Float::class.javaPrimitiveType!!, float)
+        register(Boolean::class.javaObjectType, boolean)
+        register(Boolean::class.javaPrimitiveType!!, boolean)
+        register(String::class.java, ValueType(natural, { v -> v.toString() }))
+        register(BigDecimal::class.java,
+                 ValueType(natural, { v ->
+                     when (v) {
+                         is BigDecimal -> v
+                         is Double, is Float -> BigDecimal.valueOf((v as Number).toDouble())
+                         is Number -> BigDecimal.valueOf(v.toLong())
+                         else -> BigDecimal(v.toString())
+                     }
+                 }, hashKey = { v -> (v as BigDecimal).stripTrailingZeros() }))
+        register(LocalDate::class.java,
+                 ValueType(natural, { v -> if (v is LocalDate) v else LocalDate.parse(v.toString()) },
+                           longKey = { v -> (v as LocalDate).toEpochDay() }))
+        register(LocalDateTime::class.java,
+                 ValueType(natural, { v -> if (v is LocalDateTime) v else LocalDateTime.parse(v.toString()) }))
+        register(Instant::class.java,
+                 ValueType(natural, { v -> if (v is Instant) v else Instant.parse(v.toString()) }))
+        register(UUID::class.java,
+                 ValueType(natural, { v -> if (v is UUID) v else UUID.fromString(v.toString()) }))
+    }
+
+    fun register(type: Class<*>, valueType: ValueType) {
+        registry[type] = valueType
+    }
+
+    fun of(type: Class<*>): ValueType =
+        registry[type] ?: when {
+            type.isEnum -> registry.computeIfAbsent(type) { enumType(it) }
+            Comparable::class.java.isAssignableFrom(type) && type != Any::class.java ->
+                registry.computeIfAbsent(type) { ValueType(natural, { v -> convertTo(it, v) }) }
+            else -> dynamic
+        }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun enumType(type: Class<*>): ValueType {
+        val constants = (type.enumConstants as Array<Enum<*>>).associateBy { it.name }
+
+        return ValueType(natural,
+                         { v -> if (type.isInstance(v)) v else constants[v.toString()]
+                                ?: throw IllegalArgumentException("Illegal conversion supported: from $v to $type") },
+                         longKey = { v -> (v as Enum<*>).ordinal.toLong() })
+    }
+
+    private fun convertTo(type: Class<*>, value: Any): Any =
+        if (type.isInstance(value)) value
+        else throw IllegalArgumentException("Illegal conversion supported: from ${value::class} to $type")
+}
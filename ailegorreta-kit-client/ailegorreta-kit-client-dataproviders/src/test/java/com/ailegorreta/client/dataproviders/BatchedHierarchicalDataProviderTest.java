@@ -0,0 +1,190 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  BatchedHierarchicalDataProviderTest.java
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.vaadin.flow.data.provider.QuerySortOrder;
+import com.vaadin.flow.data.provider.hierarchy.HierarchicalQuery;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The BatchedHierarchicalDataProvider reads the children and the hasChildren answers of
+ * several items in one back-end call, keeps them in bounded caches and does not hold its
+ * lock while the back-end is called.
+ *
+ * @project ailegorreta-kit-client-dataprovider
+ * @author rlh
+ * @date October 2023
+ */
+public class BatchedHierarchicalDataProviderTest {
+
+    @Test
+    public void oneCallForTheRowsOfAPage() {
+        TreeProvider provider = new TreeProvider();
+        List<Integer> roots = fetch(provider, null);
+
+        assertEquals(List.of(1, 2, 3, 4, 5, 6, 7, 8, 9), roots);
+        roots.forEach(root -> assertTrue(provider.hasChildren(root)));
+        assertEquals(1, provider.hasChildrenCalls.get());
+
+        provider.prefetchChildren(roots);
+        assertEquals(List.of(11, 12, 13), fetch(provider, 1));
+        assertEquals(3, provider.getChildCount(query(9)));
+        assertEquals(1, provider.childrenCalls.get());
+        assertFalse(provider.hasChildren(11));
+        assertFalse(provider.hasChildren(13));                  // read with 11
+        assertEquals(2, provider.hasChildrenCalls.get());
+    }
+
+    @Test
+    public void cachesAreBounded() {
+        TreeProvider provider = new TreeProvider();
+
+        provider.maxCached = 3;
+        for (int parent = 1; parent <= 9; parent++)
+            assertEquals(3, provider.getChildCount(query(parent)));
+        assertEquals(9, provider.childrenCalls.get());
+
+        assertEquals(3, provider.getChildCount(query(9)));      // still cached
+        assertEquals(9, provider.childrenCalls.get());
+        assertEquals(3, provider.getChildCount(query(1)));      // evicted
+        assertEquals(10, provider.childrenCalls.get());
+
+        for (int item = 1; item <= 9; item++)
+            assertTrue(provider.hasChildren(item * 10));
+        assertEquals(9, provider.hasChildrenCalls.get());
+        assertTrue(provider.hasChildren(10));                   // evicted
+        assertEquals(10, provider.hasChildrenCalls.get());
+    }
+
+    @Test
+    public void backEndIsCalledOutsideTheLock() throws Exception {
+        TreeProvider provider = new TreeProvider();
+
+        provider.childrenLatch = new CountDownLatch(1);
+
+        CompletableFuture<Integer> first = CompletableFuture.supplyAsync(() -> provider.getChildCount(query(1)));
+
+        assertTrue(provider.childrenStarted.await(5, TimeUnit.SECONDS));
+
+        CompletableFuture<Integer> second = CompletableFuture.supplyAsync(() -> provider.getChildCount(query(1)));
+
+        // the provider is not locked while the children of 1 are read
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> assertTrue(provider.hasChildren(2)));
+        assertFalse(second.isDone());
+
+        provider.childrenLatch.countDown();
+        assertEquals(3, first.get(5, TimeUnit.SECONDS));
+        assertEquals(3, second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, provider.childrenCalls.get());          // the second request waited for the same call
+    }
+
+    private static List<Integer> fetch(TreeProvider provider, Integer parent) {
+        return provider.fetchChildren(query(parent)).collect(Collectors.toList());
+    }
+
+    private static HierarchicalQuery<Integer, Void> query(Integer parent) {
+        return new HierarchicalQuery<>(0, 50, Collections.emptyList(), null, null, parent);
+    }
+
+    /**
+     * The roots are 1 to 9, the children of n < 10 are n * 10 + 1 to n * 10 + 3 and
+     * the other items do not have children
+     */
+    private static class TreeProvider extends BatchedHierarchicalDataProvider<Integer, Void> {
+        final AtomicInteger childrenCalls = new AtomicInteger();
+        final AtomicInteger hasChildrenCalls = new AtomicInteger();
+        final CountDownLatch childrenStarted = new CountDownLatch(1);
+        volatile CountDownLatch childrenLatch = null;
+        int maxCached = 2_000;
+
+        @Override
+        protected Map<Integer, List<Integer>> fetchChildren(Collection<Integer> parents, Optional<Void> filter, Sort sort) {
+            childrenCalls.incrementAndGet();
+            childrenStarted.countDown();
+            if (childrenLatch != null) {
+                try {
+                    childrenLatch.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            return parents.stream()
+                          .filter(parent -> parent < 10)
+                          .collect(Collectors.toMap(parent -> parent,
+                                                    parent -> IntStream.rangeClosed(1, 3).mapToObj(i -> parent * 10 + i)
+                                                                       .collect(Collectors.toList())));
+        }
+
+        @Override
+        protected Set<Integer> hasChildren(Collection<Integer> items) {
+            hasChildrenCalls.incrementAndGet();
+
+            return items.stream().filter(item -> item < 10 || item % 10 == 0).collect(Collectors.toSet());
+        }
+
+        @Override
+        protected Page<Integer> fetchFromBackEnd(HierarchicalQuery<Integer, Void> query, Pageable pageable) {
+            List<Integer> roots = IntStream.rangeClosed(1, 9).boxed().collect(Collectors.toList());
+            int from = (int) Math.min(roots.size(), pageable.getOffset());
+
+            return new PageImpl<>(roots.subList(from, Math.min(roots.size(), from + pageable.getPageSize())), pageable, roots.size());
+        }
+
+        @Override
+        protected int getMaxCachedParents() {
+            return maxCached;
+        }
+
+        @Override
+        protected int getMaxCachedItems() {
+            return maxCached;
+        }
+
+        @Override
+        protected Executor getPrefetchExecutor() {
+            return null;
+        }
+
+        @Override
+        protected List<QuerySortOrder> getDefaultSortOrders() {
+            return Collections.emptyList();
+        }
+    }
+}
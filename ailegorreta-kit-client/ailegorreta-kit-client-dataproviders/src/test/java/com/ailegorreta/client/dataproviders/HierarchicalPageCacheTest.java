@@ -0,0 +1,240 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  HierarchicalPageCacheTest.java
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * HierarchicalPageCache: the ranges are read from aligned pages with read-ahead in the
+ * scroll direction and LRU eviction. A failed load (exception or error) or a rejected
+ * prefetch is not kept in the cache, so the page is read again.
+ *
+ * @project ailegorreta-kit-client-dataprovider
+ * @author rlh
+ * @date October 2023
+ */
+public class HierarchicalPageCacheTest {
+
+    private static final int PAGE_SIZE = 10;
+
+    private static final Executor SAME_THREAD = Runnable::run;
+    private static final Executor REJECTING = task -> { throw new RejectedExecutionException("queue is full"); };
+
+    @Test
+    public void rangesAreReadFromAlignedPages() {
+        HierarchicalPageCache<Integer> cache = new HierarchicalPageCache<>(PAGE_SIZE, 20, null);
+        Loader loader = new Loader();
+
+        assertEquals(List.of(8, 9, 10, 11, 12), fetch(cache, 8, 5, loader));
+        assertEquals(List.of(3, 4, 5), fetch(cache, 3, 3, loader));
+        assertEquals(List.of(15, 16, 17, 18, 19), fetch(cache, 15, 5, loader));
+        assertEquals(1, loader.loads(0));
+        assertEquals(1, loader.loads(1));
+        assertEquals(0, loader.loads(2));               // no prefetch without executor
+    }
+
+    @Test
+    public void nextPageIsPrefetchedInTheScrollDirection() {
+        HierarchicalPageCache<Integer> cache = new HierarchicalPageCache<>(PAGE_SIZE, 20, SAME_THREAD);
+        Loader loader = new Loader();
+
+        fetch(cache, 50, 5, loader);
+        assertEquals(1, loader.loads(6));               // first request: the next page
+        fetch(cache, 60, 5, loader);
+        assertEquals(1, loader.loads(7));               // scroll down
+        fetch(cache, 40, 5, loader);
+        assertEquals(1, loader.loads(3));               // scroll up
+        assertEquals(0, loader.loads(8));
+    }
+
+    @Test
+    public void leastRecentlyUsedPagesAreEvicted() {
+        HierarchicalPageCache<Integer> cache = new HierarchicalPageCache<>(PAGE_SIZE, 2, null);
+        Loader loader = new Loader();
+
+        fetch(cache, 0, 5, loader);
+        fetch(cache, 10, 5, loader);
+        fetch(cache, 0, 5, loader);                     // page 1 is the eldest now
+        fetch(cache, 20, 5, loader);
+        fetch(cache, 0, 5, loader);
+        assertEquals(1, loader.loads(0));
+        fetch(cache, 10, 5, loader);
+        assertEquals(2, loader.loads(1));
+    }
+
+    @Test
+    public void failedLoadIsReadAgain() {
+        HierarchicalPageCache<Integer> cache = new HierarchicalPageCache<>(PAGE_SIZE, 20, null);
+        Loader loader = new Loader();
+
+        loader.failures.put(0, new IllegalStateException("back-end down"));
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> fetch(cache, 0, 5, loader));
+
+        assertEquals("back-end down", e.getMessage());
+        assertEquals(List.of(0, 1, 2, 3, 4), fetch(cache, 0, 5, loader));
+        assertEquals(2, loader.loads(0));
+        assertEquals(List.of(5, 6), fetch(cache, 5, 2, loader));
+        assertEquals(2, loader.loads(0));               // now it is cached
+    }
+
+    @Test
+    public void errorIsPropagatedAndNotCached() {
+        HierarchicalPageCache<Integer> cache = new HierarchicalPageCache<>(PAGE_SIZE, 20, null);
+        Loader loader = new Loader();
+
+        loader.failures.put(0, new LoaderError());
+
+        assertThrows(LoaderError.class, () -> fetch(cache, 0, 5, loader));
+        assertEquals(List.of(0, 1, 2, 3, 4), fetch(cache, 0, 5, loader));
+        assertEquals(2, loader.loads(0));
+    }
+
+    @Test
+    public void failedPrefetchIsReadAgain() {
+        HierarchicalPageCache<Integer> cache = new HierarchicalPageCache<>(PAGE_SIZE, 20, SAME_THREAD);
+        Loader loader = new Loader();
+
+        loader.failures.put(1, new IllegalStateException("back-end down"));
+        assertEquals(List.of(0, 1, 2), fetch(cache, 0, 3, loader));
+        assertEquals(1, loader.loads(1));               // the prefetch failed
+
+        assertEquals(List.of(10, 11, 12), fetch(cache, 10, 3, loader));
+        assertEquals(2, loader.loads(1));
+    }
+
+    @Test
+    public void prefetchErrorIsNotCached() {
+        HierarchicalPageCache<Integer> cache = new HierarchicalPageCache<>(PAGE_SIZE, 20, SAME_THREAD);
+        Loader loader = new Loader();
+
+        loader.failures.put(1, new LoaderError());
+        // the error is thrown in the prefetch thread (here the caller thread)
+        assertThrows(LoaderError.class, () -> fetch(cache, 0, 3, loader));
+        assertEquals(List.of(10, 11, 12), fetch(cache, 10, 3, loader));
+        assertEquals(2, loader.loads(1));
+    }
+
+    @Test
+    public void rejectedPrefetchIsReadInTheCallerThread() {
+        HierarchicalPageCache<Integer> cache = new HierarchicalPageCache<>(PAGE_SIZE, 20, REJECTING);
+        Loader loader = new Loader();
+
+        assertEquals(List.of(8, 9, 10, 11), fetch(cache, 8, 4, loader));
+        assertEquals(0, loader.loads(2));               // the prefetch was rejected
+        assertEquals(List.of(20, 21), fetch(cache, 20, 2, loader));
+        assertEquals(1, loader.loads(2));
+        assertEquals(1, loader.loads(0));
+        assertEquals(1, loader.loads(1));
+    }
+
+    @Test
+    public void invalidateReadsThePagesAgain() {
+        HierarchicalPageCache<Integer> cache = new HierarchicalPageCache<>(PAGE_SIZE, 20, null);
+        Loader loader = new Loader();
+
+        fetch(cache, 0, 5, loader);
+        cache.invalidate();
+        fetch(cache, 0, 5, loader);
+        assertEquals(2, loader.loads(0));
+    }
+
+    @Test
+    public void asyncFetchCompletesWhenThePagesArrive() {
+        HierarchicalPageCache<Integer> cache = new HierarchicalPageCache<>(PAGE_SIZE, 20, SAME_THREAD);
+        Map<Integer, CompletableFuture<List<Integer>>> requested = new ConcurrentHashMap<>();
+        HierarchicalPageCache.AsyncPageLoader<Integer> loader =
+                pageable -> requested.computeIfAbsent(pageable.getPageNumber(), p -> new CompletableFuture<>());
+
+        CompletableFuture<List<Integer>> rows = cache.fetchAsync(null, Sort.unsorted(), null, 8, 4, loader);
+
+        assertFalse(rows.isDone());
+        assertEquals(Set.of(0), requested.keySet());            // page 1 is requested after page 0
+        requested.get(0).complete(new Loader().load(PageRequest.of(0, PAGE_SIZE)));
+        assertFalse(rows.isDone());
+        requested.get(1).complete(new Loader().load(PageRequest.of(1, PAGE_SIZE)));
+        assertEquals(List.of(8, 9, 10, 11), rows.join());
+        assertEquals(Set.of(0, 1, 2), requested.keySet());      // page 2 is prefetched
+
+        requested.get(2).completeExceptionally(new IllegalStateException("back-end down"));
+        requested.remove(2);
+
+        CompletableFuture<List<Integer>> failed = cache.fetchAsync(null, Sort.unsorted(), null, 20, 2, loader);
+
+        assertFalse(failed.isDone());
+        assertTrue(requested.containsKey(2));                   // the failed prefetch was not kept
+        requested.get(2).complete(new Loader().load(PageRequest.of(2, PAGE_SIZE)));
+        assertEquals(List.of(20, 21), failed.join());
+    }
+
+    private static List<Integer> fetch(HierarchicalPageCache<Integer> cache, int offset, int limit, Loader loader) {
+        return cache.fetch(null, Sort.unsorted(), null, offset, limit, loader);
+    }
+
+    /**
+     * Pages of consecutive numbers that fail once with the exception of its page number
+     */
+    private static class Loader implements HierarchicalPageCache.PageLoader<Integer> {
+        final Map<Integer, Throwable> failures = new ConcurrentHashMap<>();
+        private final Map<Integer, AtomicInteger> loads = new ConcurrentHashMap<>();
+
+        @Override
+        public List<Integer> load(Pageable pageable) {
+            int page = pageable.getPageNumber();
+            Throwable failure = failures.remove(page);
+
+            loads.computeIfAbsent(page, p -> new AtomicInteger()).incrementAndGet();
+            if (failure instanceof RuntimeException)
+                throw (RuntimeException) failure;
+            if (failure instanceof Error)
+                throw (Error) failure;
+
+            return IntStream.range(page * PAGE_SIZE, (page + 1) * PAGE_SIZE).boxed().collect(Collectors.toList());
+        }
+
+        int loads(int page) {
+            AtomicInteger res = loads.get(page);
+
+            return (res == null) ? 0 : res.get();
+        }
+    }
+
+    private static class LoaderError extends Error {
+    }
+}
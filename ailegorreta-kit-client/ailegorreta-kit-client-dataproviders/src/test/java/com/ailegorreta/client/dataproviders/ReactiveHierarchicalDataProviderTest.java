@@ -0,0 +1,148 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  ReactiveHierarchicalDataProviderTest.java
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import com.ailegorreta.client.dataproviders.exceptions.WebClientException;
+import com.vaadin.flow.data.provider.QuerySortOrder;
+import com.vaadin.flow.data.provider.hierarchy.HierarchicalQuery;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The ReactiveHierarchicalDataProvider reads the pages of a Flux back-end through the
+ * page cache: only the rows of each page are requested, the prefetch of the next page
+ * is just a subscription and a back-end that does not answer is a 504.
+ *
+ * @project ailegorreta-kit-client-dataprovider
+ * @author rlh
+ * @date October 2023
+ */
+public class ReactiveHierarchicalDataProviderTest {
+
+    private static final int PAGE_SIZE = 10;
+
+    @Test
+    public void pagesAreReadFromTheFlux() {
+        NumbersProvider provider = new NumbersProvider(Duration.ofMillis(20));
+
+        assertEquals(List.of(5, 6, 7, 8, 9, 10, 11), fetch(provider, 5, 7));
+        assertEquals(3, provider.pages.get());                   // pages 0 and 1, page 2 is prefetched
+
+        assertEquals(List.of(20, 21, 22), fetch(provider, 20, 3));
+        assertEquals(4, provider.pages.get());                   // page 2 was cached, page 3 is prefetched
+        assertTrue(provider.emitted.get() <= 4 * PAGE_SIZE);     // take(page size) cancels each Flux
+    }
+
+    @Test
+    public void lastPageIsShort() {
+        NumbersProvider provider = new NumbersProvider(Duration.ZERO);
+
+        provider.size = 25;
+        assertEquals(List.of(18, 19, 20, 21, 22, 23, 24), fetch(provider, 18, 10));
+        assertEquals(2, provider.pages.get());                   // no prefetch after the last page
+        assertEquals(25, provider.getChildCount(query(0, PAGE_SIZE)));
+    }
+
+    @Test
+    public void timeoutIsA504() {
+        NumbersProvider provider = new NumbersProvider(Duration.ofSeconds(10));
+
+        provider.timeout = Duration.ofMillis(50);
+
+        WebClientException e = assertThrows(WebClientException.class, () -> fetch(provider, 0, 5));
+
+        assertEquals(504, e.getStatus());
+
+        provider.delay = Duration.ZERO;                          // the failed page is read again
+        assertEquals(List.of(0, 1, 2, 3, 4), fetch(provider, 0, 5));
+    }
+
+    private static List<Integer> fetch(NumbersProvider provider, int offset, int limit) {
+        return provider.fetchChildren(query(offset, limit)).collect(Collectors.toList());
+    }
+
+    private static HierarchicalQuery<Integer, Void> query(int offset, int limit) {
+        return new HierarchicalQuery<>(offset, limit, Collections.emptyList(), null, null, null);
+    }
+
+    /**
+     * The numbers from 0 to size, each page is a delayed Flux of all the numbers from its offset
+     */
+    private static class NumbersProvider extends ReactiveHierarchicalDataProvider<Integer, Void> {
+        final AtomicInteger pages = new AtomicInteger();
+        final AtomicInteger emitted = new AtomicInteger();
+        volatile Duration delay;
+        volatile Duration timeout = Duration.ofSeconds(5);
+        int size = Integer.MAX_VALUE;
+
+        NumbersProvider(Duration delay) {
+            this.delay = delay;
+        }
+
+        @Override
+        protected Mono<Page<Integer>> fetchPage(HierarchicalQuery<Integer, Void> query, Pageable pageable) {
+            pages.incrementAndGet();
+
+            return pageOf(Flux.range((int) pageable.getOffset(), (int) Math.max(0, size - pageable.getOffset()))
+                              .delaySubscription(delay)
+                              .doOnNext(n -> emitted.incrementAndGet()),
+                          pageable);
+        }
+
+        @Override
+        protected Mono<Long> countMono(HierarchicalQuery<Integer, Void> query) {
+            return Mono.just((long) size);
+        }
+
+        @Override
+        protected Duration getTimeout() {
+            return timeout;
+        }
+
+        @Override
+        protected int getCachePageSize() {
+            return PAGE_SIZE;
+        }
+
+        @Override
+        protected List<QuerySortOrder> getDefaultSortOrders() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean hasChildren(Integer item) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  AggregationTest.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import com.ailegorreta.commons.dtomappers.FilteredDTO
+import com.github.mvysny.vokdataloader.*
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.math.BigDecimal
+import kotlin.reflect.KProperty1
+
+/**
+ * The aggregations of the InMemoryService are the same as the totals computed over
+ * the filtered rows, and the sums do not lose precision nor fail on overflow.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class AggregationTest {
+
+    data class RowDTO(val id: Int, val status: String?, val quantity: Long?, val amount: BigDecimal?): FilteredDTO<RowDTO> {
+        override fun filterProperties(): HashMap<String, KProperty1<RowDTO, Any?>> =
+            hashMapOf("id" to RowDTO::id, "status" to RowDTO::status, "quantity" to RowDTO::quantity, "amount" to RowDTO::amount)
+    }
+
+    class RowService: InMemoryService<RowDTO>() {
+        override fun idOf(item: RowDTO): Any? = item.id
+    }
+
+    private val statuses = listOf("OPEN", "CLOSED", null)
+    private val rows = (0 until 3_000).map {
+        RowDTO(it, statuses[it % 3], if (it % 7 == 0) null else it.toLong(),
+               if (it % 5 == 0) null else BigDecimal.valueOf(it.toLong(), it % 4))
+    }
+    private val service = RowService().also { it.initDataSource(rows) }
+    private val aggregations = listOf(Aggregation.count(), Aggregation.count("quantity"), Aggregation.sum("quantity"),
+                                      Aggregation.sum("amount"), Aggregation.min("amount"), Aggregation.max("amount"))
+
+    @Test
+    @Suppress("UNCHECKED_CAST")
+    fun `totals without and with filter`() {
+        assertTotals(rows, service.aggregate(null, null, aggregations).values)
+
+        val filter = OpFilter<RowDTO>("id", 1_000 as Comparable<Any>, CompareOperator.ge)
+
+        assertTotals(rows.filter { it.id >= 1_000 }, service.aggregate(filter, null, aggregations).values)
+    }
+
+    @Test
+    fun `totals by group`() {
+        val result = service.aggregate(null, "status", aggregations)
+
+        statuses.forEach { status -> assertTotals(rows.filter { it.status == status }, result.groups[status]!!) }
+    }
+
+    @Test
+    fun `totals after mutations`() {
+        val current = ArrayList(rows)
+
+        service.aggregate(null, null, aggregations)
+        service.remove(rows[1])
+        current.remove(rows[1])
+        service.update(rows[2].copy(amount = BigDecimal("0.001")))
+        current[current.indexOfFirst { it.id == 2 }] = rows[2].copy(amount = BigDecimal("0.001"))
+        service.add(RowDTO(5_000, "OPEN", 7L, BigDecimal("12.5")))
+        current.add(RowDTO(5_000, "OPEN", 7L, BigDecimal("12.5")))
+
+        assertTotals(current, service.aggregate(null, null, aggregations).values)
+    }
+
+    @Test
+    fun `long sum overflow continues as BigDecimal`() {
+        val sum = SumAccumulator()
+
+        sum.add(Long.MAX_VALUE)
+        sum.add(Long.MAX_VALUE)
+        sum.add(2)
+        assertEquals(BigDecimal.valueOf(Long.MAX_VALUE).multiply(BigDecimal(2)).add(BigDecimal(2)), sum.result())
+    }
+
+    @Test
+    fun `BigDecimal sum of several scales and large values`() {
+        val sum = BigDecimalSum()
+        val other = BigDecimalSum()
+
+        sum.add(BigDecimal("1.5"))
+        sum.add(BigDecimal("0.25"))
+        sum.add(BigDecimal("-3"))
+        sum.add(BigDecimal("123456789012345678901234567890.1"))
+        repeat(11) { other.add(BigDecimal("999999999999999999")) }     // the long total overflows
+        sum.merge(other)
+
+        assertEquals(BigDecimal("123456789023345678901234567877.85"), sum.result())
+
+        val zero = BigDecimalSum()
+
+        zero.add(BigDecimal("1.00"))
+        zero.add(BigDecimal("-1.00"))
+        assertEquals(BigDecimal("0.00"), zero.result())
+    }
+
+    private fun assertTotals(rows: List<RowDTO>, values: List<Any?>) {
+        val quantities = rows.mapNotNull { it.quantity }
+        val amounts = rows.mapNotNull { it.amount }
+
+        assertEquals(rows.size.toLong(), values[0])
+        assertEquals(quantities.size.toLong(), values[1])
+        assertEquals(quantities.sum(), values[2])
+        assertEquals(0, amounts.fold(BigDecimal.ZERO, BigDecimal::add).compareTo(values[3] as BigDecimal))
+        assertEquals(0, amounts.minOrNull()!!.compareTo(values[4] as BigDecimal))
+        assertEquals(0, amounts.maxOrNull()!!.compareTo(values[5] as BigDecimal))
+    }
+}
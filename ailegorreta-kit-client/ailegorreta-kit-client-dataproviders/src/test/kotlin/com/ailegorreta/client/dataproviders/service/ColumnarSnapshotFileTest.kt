@@ -0,0 +1,149 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  ColumnarSnapshotFileTest.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import com.ailegorreta.commons.dtomappers.FilteredDTO
+import com.github.mvysny.vokdataloader.*
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.math.BigDecimal
+import java.nio.file.Files
+import java.nio.file.Path
+import java.time.LocalDate
+import kotlin.reflect.KProperty1
+
+/**
+ * A ColumnarInMemoryService loaded from its snapshot file returns the same rows as
+ * the one loaded from the source, and the snapshot is ignored when it has another
+ * version, another schema or it is corrupt.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class ColumnarSnapshotFileTest {
+
+    enum class Status { OPEN, CLOSED }
+
+    data class RowDTO(val id: Int, val name: String?, val amount: Double?, val date: LocalDate?,
+                      val price: BigDecimal?, val status: Status?): FilteredDTO<RowDTO> {
+        override fun filterProperties(): HashMap<String, KProperty1<RowDTO, Any?>> =
+            hashMapOf("id" to RowDTO::id, "name" to RowDTO::name, "amount" to RowDTO::amount, "date" to RowDTO::date,
+                      "price" to RowDTO::price, "status" to RowDTO::status)
+    }
+
+    class RowService(private val offHeap: Boolean = false): ColumnarInMemoryService<RowDTO>() {
+        override fun materialize(row: ColumnarRow) =
+            RowDTO(row["id"] as Int, row["name"] as String?, row["amount"] as Double?, row["date"] as LocalDate?,
+                   row["price"] as BigDecimal?, row["status"] as Status?)
+
+        override fun offHeapStrings() = offHeap
+    }
+
+    /**
+     * Same properties as RowDTO but the id is a Long (e.g., the DTO of a new deployment)
+     */
+    data class OtherDTO(val id: Long, val name: String?, val amount: Double?, val date: LocalDate?,
+                        val price: BigDecimal?, val status: Status?): FilteredDTO<OtherDTO> {
+        override fun filterProperties(): HashMap<String, KProperty1<OtherDTO, Any?>> =
+            hashMapOf("id" to OtherDTO::id, "name" to OtherDTO::name, "amount" to OtherDTO::amount, "date" to OtherDTO::date,
+                      "price" to OtherDTO::price, "status" to OtherDTO::status)
+    }
+
+    class OtherService: ColumnarInMemoryService<OtherDTO>() {
+        override fun materialize(row: ColumnarRow) =
+            OtherDTO(row["id"] as Long, row["name"] as String?, row["amount"] as Double?, row["date"] as LocalDate?,
+                     row["price"] as BigDecimal?, row["status"] as Status?)
+    }
+
+    @TempDir
+    lateinit var dir: Path
+
+    private val base = LocalDate.of(2023, 1, 1)
+    private val rows = (0 until 2_000).map {
+        RowDTO(it, if (it % 9 == 0) null else "Name ${it % 50}", if (it % 7 == 0) null else it / 4.0,
+               if (it % 11 == 0) null else base.plusDays((it % 400).toLong()),
+               if (it % 13 == 0) null else BigDecimal.valueOf(it.toLong(), 2),
+               if (it % 5 == 0) null else Status.values()[it % 2])
+    }
+    private val prototype = rows[1]
+    private val sortById = listOf(SortClause("id", true))
+    private val all = 0L until rows.size.toLong()
+
+    @Test
+    fun `round trip of the snapshot`() {
+        val file = dir.resolve("rows.snapshot")
+
+        RowService().initDataSource(file, 7L, prototype) { rows }
+        assertTrue(Files.exists(file))
+
+        listOf(false, true).forEach { offHeap ->
+            val restarted = RowService(offHeap)
+
+            restarted.initDataSource(file, 7L, prototype) { fail("The snapshot must be used") }
+            assertEquals(rows, restarted.fetch(null, sortById, all))
+            assertEquals(rows.filter { it.name == "Name 7" }.map { it.id },
+                         restarted.fetch(EqFilter("name", "Name 7"), sortById, all).map { it.id })
+            assertEquals(rows.count { it.status == Status.OPEN }.toLong(), restarted.getCount(EqFilter("status", Status.OPEN)))
+        }
+    }
+
+    @Test
+    fun `snapshot of another version`() {
+        val file = dir.resolve("rows.snapshot")
+        var loads = 0
+
+        RowService().initDataSource(file, 7L, prototype) { rows }
+        RowService().initDataSource(file, 8L, prototype) { loads++; rows }
+        assertEquals(1, loads)
+    }
+
+    @Test
+    fun `snapshot of another schema`() {
+        val file = dir.resolve("rows.snapshot")
+        val others = rows.map { OtherDTO(it.id.toLong(), it.name, it.amount, it.date, it.price, it.status) }
+        val service = OtherService()
+        var loads = 0
+
+        RowService().initDataSource(file, 7L, prototype) { rows }
+        service.initDataSource(file, 7L, others[1]) { loads++; others }
+        assertEquals(1, loads)
+        assertEquals(others, service.fetch(null, sortById, all))
+    }
+
+    @Test
+    fun `corrupt snapshot`() {
+        val file = dir.resolve("rows.snapshot")
+        var loads = 0
+
+        RowService().initDataSource(file, 7L, prototype) { rows }
+
+        val bytes = Files.readAllBytes(file)
+
+        bytes[bytes.size - 10] = (bytes[bytes.size - 10] + 1).toByte()
+        Files.write(file, bytes)
+        RowService().initDataSource(file, 7L, prototype) { loads++; rows }
+        assertEquals(1, loads)
+    }
+}
@@ -0,0 +1,84 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  ColumnarStoreTest.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import com.ailegorreta.commons.dtomappers.FilteredDTO
+import com.ailegorreta.commons.dtomappers.PropertyAccessors
+import com.github.mvysny.vokdataloader.*
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.math.BigDecimal
+import kotlin.reflect.KProperty1
+
+/**
+ * The columns of the ColumnarStore compare the values with the ValueType of the
+ * property, as the row based scan does, and a filter value with decimals is not
+ * truncated for an integer column.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class ColumnarStoreTest {
+
+    data class RowDTO(val id: Int, val quantity: Int, val amount: BigDecimal?): FilteredDTO<RowDTO> {
+        override fun filterProperties(): HashMap<String, KProperty1<RowDTO, Any?>> =
+            hashMapOf("id" to RowDTO::id, "quantity" to RowDTO::quantity, "amount" to RowDTO::amount)
+    }
+
+    private val rows = listOf(RowDTO(0, 1, BigDecimal("2.50")),
+                              RowDTO(1, 2, BigDecimal("10")),
+                              RowDTO(2, 3, null),
+                              RowDTO(3, 2, BigDecimal("2.5")),
+                              RowDTO(4, 5, BigDecimal("-1.000")))
+    private val store = ColumnarStore(rows, PropertyAccessors.of(rows.first()))
+
+    @Test
+    @Suppress("UNCHECKED_CAST")
+    fun `integer column with decimal filter values`() {
+        assertEquals(listOf(2, 4), ids(OpFilter("quantity", 2.5 as Comparable<Any>, CompareOperator.gt)))
+        assertEquals(listOf(0, 1, 3), ids(OpFilter("quantity", 2.5 as Comparable<Any>, CompareOperator.lt)))
+        assertEquals(listOf(0), ids(OpFilter("quantity", BigDecimal("1.5") as Comparable<Any>, CompareOperator.le)))
+        assertEquals(emptyList<Int>(), ids(EqFilter("quantity", 2.5)))
+        assertEquals(listOf(1, 3), ids(EqFilter("quantity", 2.0)))
+        assertEquals(listOf(1, 3), ids(EqFilter("quantity", BigDecimal("2.00"))))
+    }
+
+    @Test
+    @Suppress("UNCHECKED_CAST")
+    fun `BigDecimal column compared with its ValueType`() {
+        assertEquals(listOf(0, 3), ids(EqFilter("amount", BigDecimal("2.5"))))
+        assertEquals(listOf(1), ids(OpFilter("amount", BigDecimal("2.500") as Comparable<Any>, CompareOperator.gt)))
+        assertEquals(listOf(2), ids(IsNullFilter("amount")))
+
+        val sorted = (0 until store.size).sortedWith { a, b -> store.comparator(listOf(SortClause("amount", true))).compare(a, b) }
+
+        assertEquals(listOf(2, 4, 0, 3, 1), sorted)             // nulls first, ties by row id
+    }
+
+    private fun ids(filter: Filter<RowDTO>): List<Int> {
+        val predicate = store.compile(filter)
+
+        return (0 until store.size).filter { predicate(it) }
+    }
+}
@@ -0,0 +1,114 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  DeltaLoaderTest.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import com.ailegorreta.commons.dtomappers.FilteredDTO
+import com.github.mvysny.vokdataloader.SortClause
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import reactor.core.publisher.Flux
+import java.time.Instant
+import kotlin.reflect.KProperty1
+
+/**
+ * The DeltaLoader loads all the rows in batches, applies the changes of each refresh
+ * and requests them since the greatest updatedAt received from the source.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class DeltaLoaderTest {
+
+    data class RowDTO(val id: Int, val name: String, val updatedAt: Instant, val deleted: Boolean = false): FilteredDTO<RowDTO> {
+        override fun filterProperties(): HashMap<String, KProperty1<RowDTO, Any?>> =
+            hashMapOf("id" to RowDTO::id, "name" to RowDTO::name)
+    }
+
+    class RowService: InMemoryService<RowDTO>() {
+        override fun idOf(item: RowDTO): Any? = item.id
+    }
+
+    /**
+     * Source with the rows in memory, it records the updatedSince of each request
+     */
+    class MemorySource(var rows: List<RowDTO>): DeltaSource<RowDTO> {
+        val requests = ArrayList<Instant?>()
+
+        override fun fetch(updatedSince: Instant?): Flux<RowDTO> {
+            requests.add(updatedSince)
+
+            return Flux.fromIterable(rows.filter { updatedSince == null || it.updatedAt >= updatedSince })
+        }
+    }
+
+    private val base = Instant.parse("2023-10-01T00:00:00Z")
+    private val sortById = listOf(SortClause("id", true))
+
+    @Test
+    fun `load and refresh`() {
+        val rows = (0 until 2_500).map { RowDTO(it, "N$it", base.plusSeconds(it % 100L)) }
+        val source = MemorySource(rows)
+        val service = RowService()
+        val loader = DeltaLoader(service, source, { it.updatedAt }, batchSize = 1_000) { it.deleted }
+
+        loader.load().block()
+        assertEquals(rows, service.fetch(null, sortById, 0L until rows.size.toLong()))
+        assertEquals(base.plusSeconds(99), loader.lastSync)
+
+        val changes = listOf(RowDTO(5, "changed", base.plusSeconds(200)),
+                             RowDTO(7, "N7", base.plusSeconds(150), deleted = true),
+                             RowDTO(3_000, "new", base.plusSeconds(180)))
+
+        source.rows = rows + changes
+        loader.refresh().block()
+
+        val expected = (rows.filter { it.id != 7 && it.id != 5 } + changes[0] + changes[2]).sortedBy { it.id }
+
+        assertEquals(expected.size.toLong(), service.getCount(null))
+        assertEquals(expected, service.fetch(null, sortById, 0L until expected.size.toLong()))
+        assertEquals(listOf(null, base.plusSeconds(99)), source.requests)
+        assertEquals(base.plusSeconds(200), loader.lastSync)
+
+        // without changes the watermark is kept
+        source.rows = emptyList()
+        loader.refresh().block()
+        assertEquals(base.plusSeconds(200), source.requests.last())
+        assertEquals(base.plusSeconds(200), loader.lastSync)
+    }
+
+    @Test
+    fun `load of a single batch and of an empty source`() {
+        val rows = (0 until 10).map { RowDTO(it, "N$it", base.plusSeconds(it.toLong())) }
+        val service = RowService()
+
+        DeltaLoader(service, MemorySource(rows), { it.updatedAt }).load().block()
+        assertEquals(10L, service.getCount(null))
+
+        val empty = DeltaLoader(service, MemorySource(emptyList()), { it.updatedAt })
+
+        empty.load().block()
+        assertEquals(0L, service.getCount(null))
+        assertEquals(Instant.EPOCH, empty.lastSync)
+    }
+}
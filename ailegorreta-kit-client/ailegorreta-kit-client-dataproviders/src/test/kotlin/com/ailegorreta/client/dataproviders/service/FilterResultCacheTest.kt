@@ -0,0 +1,116 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  FilterResultCacheTest.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import com.ailegorreta.commons.dtomappers.FilteredDTO
+import com.github.mvysny.vokdataloader.*
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import kotlin.reflect.KProperty1
+
+/**
+ * The filter results are cached by the normalized filter (FilterKey) in an LRU bounded
+ * by entries and by rows, and getCount and fetch share the same entry.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class FilterResultCacheTest {
+
+    data class RowDTO(val id: Int, val name: String, val amount: Int): FilteredDTO<RowDTO> {
+        override fun filterProperties(): HashMap<String, KProperty1<RowDTO, Any?>> =
+            hashMapOf("id" to RowDTO::id, "name" to RowDTO::name, "amount" to RowDTO::amount)
+    }
+
+    class RowService: InMemoryService<RowDTO>() {
+        override fun idOf(item: RowDTO): Any? = item.id
+
+        override fun filterCacheEntries() = 2
+    }
+
+    private val a = EqFilter<RowDTO>("amount", 3)
+    private val b = StartsWithFilter<RowDTO>("name", "N1%", false)
+    private val c = IsNotNullFilter<RowDTO>("id")
+
+    @Test
+    fun `equivalent filters have the same key`() {
+        assertEquals(FilterKey.of(AndFilter(setOf(a, b))), FilterKey.of(AndFilter(setOf(b, a))))
+        assertEquals(FilterKey.of(AndFilter(setOf(a, b, c))), FilterKey.of(AndFilter(setOf(AndFilter(setOf(c, b)), a))))
+        assertEquals(FilterKey.of(a), FilterKey.of(AndFilter(setOf(a))))
+        assertNotEquals(FilterKey.of(AndFilter(setOf(a, b))), FilterKey.of(OrFilter(setOf(a, b))))
+        assertNotEquals(FilterKey.of(b), FilterKey.of(StartsWithFilter<RowDTO>("name", "N1%", true)))
+    }
+
+    @Test
+    fun `least recently used entries are evicted`() {
+        val cache = FilterResultCache<Int>(2, 100)
+
+        cache.put(FilterKey.of(a), a, listOf(1))
+        cache.put(FilterKey.of(b), b, listOf(2))
+        assertEquals(listOf(1), cache.get(FilterKey.of(a)))    // now b is the eldest
+        cache.put(FilterKey.of(c), c, listOf(3))
+
+        assertNull(cache.get(FilterKey.of(b)))
+        assertEquals(listOf(1), cache.get(FilterKey.of(a)))
+        assertEquals(listOf(3), cache.get(FilterKey.of(c)))
+        assertEquals(FilterCacheStats(3, 1, 2, 2), cache.stats())
+    }
+
+    @Test
+    fun `entries are evicted by rows but the last one is kept`() {
+        val cache = FilterResultCache<Int>(8, 10)
+
+        cache.put(FilterKey.of(a), a, (0 until 6).toList())
+        cache.put(FilterKey.of(b), b, (0 until 4).toList())
+        assertEquals(10L, cache.stats().rows)
+
+        cache.put(FilterKey.of(c), c, (0 until 20).toList())
+        assertNull(cache.get(FilterKey.of(a)))
+        assertNull(cache.get(FilterKey.of(b)))
+        assertEquals(20, cache.get(FilterKey.of(c))!!.size)
+        assertEquals(20L, cache.stats().rows)
+    }
+
+    @Test
+    fun `getCount and fetch share the cached result`() {
+        val rows = (0 until 1_000).map { RowDTO(it, "N$it", it % 10) }
+        val service = RowService().also { it.initDataSource(rows) }
+        val expected = rows.filter { it.amount == 3 && it.name.startsWith("N1") }
+
+        assertEquals(expected.size.toLong(), service.getCount(AndFilter(setOf(a, b))))
+        assertEquals(expected, service.fetch(AndFilter(setOf(b, a)), emptyList(), 0L until expected.size.toLong()))
+
+        val stats = service.filterCacheStats()
+
+        assertEquals(1, stats.entries)
+        assertEquals(1L, stats.misses)
+        assertEquals(expected.size.toLong(), stats.rows)
+        assertTrue(stats.hits >= 1L)
+
+        // a new data source invalidates the cache
+        service.initDataSource(rows.take(100))
+        assertEquals(rows.take(100).count { it.amount == 3 && it.name.startsWith("N1") }.toLong(),
+                     service.getCount(AndFilter(setOf(a, b))))
+    }
+}
@@ -0,0 +1,140 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  FilterSubsumptionTest.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import com.github.mvysny.vokdataloader.*
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.math.BigDecimal
+
+/**
+ * FilterSubsumption.subsumes(broader, narrower) for the rules of its doc, and the
+ * cases where it must not be applied.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class FilterSubsumptionTest {
+
+    @Test
+    fun `same filter and added conjuncts`() {
+        val a = EqFilter<Any>("status", "ACTIVE")
+        val b = op("amount", 100, CompareOperator.gt)
+
+        assertTrue(FilterSubsumption.subsumes(a, EqFilter<Any>("status", "ACTIVE")))
+        assertTrue(FilterSubsumption.subsumes(a, AndFilter(setOf(a, b))))
+        assertTrue(FilterSubsumption.subsumes(AndFilter(setOf(a, b)), AndFilter(setOf(b, a))))
+        assertFalse(FilterSubsumption.subsumes(AndFilter(setOf(a, b)), a))
+    }
+
+    @Test
+    fun `longer prefix`() {
+        assertTrue(FilterSubsumption.subsumes(startsWith("gar", false), startsWith("garc", false)))
+        assertTrue(FilterSubsumption.subsumes(startsWith("gar", true), startsWith("GARC", true)))
+        assertTrue(FilterSubsumption.subsumes(startsWith("gar", true), startsWith("garc", false)))
+        assertFalse(FilterSubsumption.subsumes(startsWith("garc", false), startsWith("gar", false)))
+        assertFalse(FilterSubsumption.subsumes(startsWith("gar", false), startsWith("garc", true)))
+        assertFalse(FilterSubsumption.subsumes(startsWith("gar", false), startsWith("lop", false)))
+    }
+
+    @Test
+    fun `narrower range`() {
+        assertTrue(FilterSubsumption.subsumes(op("amount", 10, CompareOperator.ge), op("amount", 20, CompareOperator.gt)))
+        assertTrue(FilterSubsumption.subsumes(op("amount", 10, CompareOperator.ge), op("amount", 10, CompareOperator.ge)))
+        assertTrue(FilterSubsumption.subsumes(op("amount", 10, CompareOperator.gt), op("amount", 10, CompareOperator.gt)))
+        assertTrue(FilterSubsumption.subsumes(op("amount", 10, CompareOperator.ge), EqFilter<Any>("amount", 15)))
+        assertTrue(FilterSubsumption.subsumes(op("amount", 50, CompareOperator.lt), op("amount", 40, CompareOperator.le)))
+        assertTrue(FilterSubsumption.subsumes(op("amount", 50, CompareOperator.ne), EqFilter<Any>("amount", 40)))
+        assertFalse(FilterSubsumption.subsumes(op("amount", 20, CompareOperator.gt), op("amount", 10, CompareOperator.ge)))
+        assertFalse(FilterSubsumption.subsumes(op("amount", 10, CompareOperator.gt), op("amount", 9, CompareOperator.gt)))
+        assertTrue(FilterSubsumption.subsumes(op("amount", 9.5, CompareOperator.gt), op("amount", 10.0, CompareOperator.gt)))
+        assertFalse(FilterSubsumption.subsumes(op("amount", 10, CompareOperator.gt), op("amount", 10, CompareOperator.ge)))
+        assertFalse(FilterSubsumption.subsumes(op("amount", 10, CompareOperator.ge), op("amount", 20, CompareOperator.lt)))
+        assertFalse(FilterSubsumption.subsumes(op("amount", 50, CompareOperator.ne), EqFilter<Any>("amount", 50)))
+    }
+
+    @Test
+    fun `is not null`() {
+        val notNull = IsNotNullFilter<Any>("amount")
+
+        assertTrue(FilterSubsumption.subsumes(notNull, EqFilter<Any>("amount", 5)))
+        assertTrue(FilterSubsumption.subsumes(notNull, op("amount", 5, CompareOperator.lt)))
+        assertFalse(FilterSubsumption.subsumes(notNull, EqFilter<Any>("amount", null)))
+        assertFalse(FilterSubsumption.subsumes(notNull, IsNullFilter<Any>("amount")))
+        assertFalse(FilterSubsumption.subsumes(notNull, EqFilter<Any>("quantity", 5)))
+    }
+
+    @Test
+    fun `undecidable cases are not subsumed`() {
+        // another property
+        assertFalse(FilterSubsumption.subsumes(op("amount", 10, CompareOperator.ge), op("quantity", 20, CompareOperator.gt)))
+        // values of another type
+        assertFalse(FilterSubsumption.subsumes(op("amount", 10, CompareOperator.ge), op("amount", 20L, CompareOperator.gt)))
+        // OR filters that are not equal
+        val or = OrFilter(setOf(EqFilter<Any>("amount", 1), EqFilter<Any>("amount", 2)))
+
+        assertFalse(FilterSubsumption.subsumes(or, EqFilter<Any>("amount", 1)))
+        assertTrue(FilterSubsumption.subsumes(or, OrFilter(setOf(EqFilter<Any>("amount", 2), EqFilter<Any>("amount", 1)))))
+    }
+
+    @Test
+    fun `each conjunct narrowed`() {
+        val broader = AndFilter(setOf(startsWith("gar", false), op("amount", 10, CompareOperator.ge)))
+
+        assertTrue(FilterSubsumption.subsumes(broader, AndFilter(setOf(op("amount", 20, CompareOperator.gt),
+                                                                       startsWith("garc", false),
+                                                                       EqFilter<Any>("status", "ACTIVE")))))
+        assertFalse(FilterSubsumption.subsumes(broader, AndFilter(setOf(op("amount", 20, CompareOperator.gt),
+                                                                        startsWith("lop", false)))))
+        assertFalse(FilterSubsumption.subsumes(broader, startsWith("garc", false)))
+    }
+
+    @Test
+    fun `full text with more words`() {
+        val broader = FullTextFilter<Any>("name", "gar")
+
+        assertTrue(FilterSubsumption.subsumes(broader, FullTextFilter<Any>("name", "garcia")))
+        assertTrue(FilterSubsumption.subsumes(broader, FullTextFilter<Any>("name", "juan garcia")))
+        assertTrue(FilterSubsumption.subsumes(IsNotNullFilter<Any>("name"), FullTextFilter<Any>("name", "garcia")))
+        assertFalse(FilterSubsumption.subsumes(FullTextFilter<Any>("name", "garcia"), broader))
+        assertFalse(FilterSubsumption.subsumes(broader, FullTextFilter<Any>("name", "lopez")))
+    }
+
+    @Test
+    fun `values compared with the ValueType`() {
+        assertTrue(FilterSubsumption.subsumes(op("amount", BigDecimal("10.0"), CompareOperator.ge), EqFilter<Any>("amount", BigDecimal("10"))))
+        assertTrue(FilterSubsumption.subsumes(EqFilter<Any>("amount", BigDecimal("10.00")), EqFilter<Any>("amount", BigDecimal("10"))))
+        assertFalse(FilterSubsumption.subsumes(op("amount", BigDecimal("10.5"), CompareOperator.gt), EqFilter<Any>("amount", BigDecimal("10.50"))))
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun op(propertyName: String, value: Comparable<*>, operator: CompareOperator): Filter<Any> =
+        OpFilter(propertyName, value as Comparable<Any>, operator)
+
+    /**
+     * The value of the StartsWithFilter ends with '%'
+     */
+    private fun startsWith(prefix: String, ignoreCase: Boolean): Filter<Any> =
+        StartsWithFilter("name", "$prefix%", ignoreCase)
+}
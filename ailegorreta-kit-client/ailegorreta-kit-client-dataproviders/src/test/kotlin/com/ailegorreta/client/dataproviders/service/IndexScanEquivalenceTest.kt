@@ -0,0 +1,181 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  IndexScanEquivalenceTest.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import com.ailegorreta.commons.dtomappers.FilteredDTO
+import com.github.mvysny.vokdataloader.*
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.math.BigDecimal
+import java.time.LocalDate
+import java.util.*
+import kotlin.reflect.KProperty1
+
+/**
+ * The filters resolved with a PropertyIndex or a BitmapIndex (Int, Double, BigDecimal
+ * and LocalDate properties, with null values) return the same rows as the scan of a
+ * service without indexes. The equality is the one of the comparator of the type, so
+ * BigDecimal 7, 7.0 and 7.00 are equal in the indexes and in the scan.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class IndexScanEquivalenceTest {
+
+    data class RowDTO(val id: Int, val amount: Double?, val date: LocalDate?, val quantity: Int?,
+                      val price: BigDecimal?): FilteredDTO<RowDTO> {
+        override fun filterProperties(): HashMap<String, KProperty1<RowDTO, Any?>> =
+            hashMapOf("id" to RowDTO::id, "amount" to RowDTO::amount, "date" to RowDTO::date,
+                      "quantity" to RowDTO::quantity, "price" to RowDTO::price)
+    }
+
+    class RowService(private val indexed: Set<String>, private val bitmapIndexed: Set<String> = emptySet()): InMemoryService<RowDTO>() {
+        override fun indexedProperties() = indexed
+
+        override fun bitmapIndexedProperties() = bitmapIndexed
+
+        override fun idOf(item: RowDTO): Any? = item.id
+    }
+
+    private val base = LocalDate.of(2023, 1, 1)
+    private val rows = createRows()
+    private val scan = RowService(emptySet()).also { it.initDataSource(rows) }
+    private val indexed = RowService(setOf("id", "amount", "date", "quantity", "price")).also { it.initDataSource(rows) }
+    private val bitmapIndexed = RowService(emptySet(), setOf("price", "quantity")).also { it.initDataSource(rows) }
+
+    @Test
+    fun `Int filters`() {
+        assertSameRows(EqFilter("id", 1234))
+        assertSameRows(op("id", 4_900, CompareOperator.ge))
+        assertSameRows(op("id", 100, CompareOperator.lt))
+        assertSameRows(op("id", 2_500, CompareOperator.le))
+        assertSameRows(op("id", 4_990, CompareOperator.gt))
+        assertSameRows(EqFilter("quantity", 7))
+        assertSameRows(op("quantity", 3, CompareOperator.le))
+        assertSameRows(EqFilter("quantity", null))
+    }
+
+    @Test
+    fun `Double filters`() {
+        assertSameRows(op("amount", 990.0, CompareOperator.gt))
+        assertSameRows(op("amount", 10.5, CompareOperator.le))
+        assertSameRows(op("amount", 500.0, CompareOperator.ge))
+        assertSameRows(EqFilter("amount", rows[10].amount))
+        assertSameRows(EqFilter("amount", 123.456))
+    }
+
+    @Test
+    fun `BigDecimal filters with values of several scales`() {
+        assertSameRows(EqFilter("price", BigDecimal("7.00")))
+        assertSameRows(EqFilter("price", BigDecimal("7")))
+        assertSameRows(EqFilter("price", 7))
+        assertSameRows(EqFilter("price", BigDecimal("7.5")))
+        assertSameRows(EqFilter("price", null))
+        assertSameRows(op("price", BigDecimal("10.0"), CompareOperator.le))
+        assertSameRows(op("price", BigDecimal("4"), CompareOperator.gt))
+        assertSameRows(OrFilter(setOf(EqFilter("price", BigDecimal("3.0")), EqFilter("price", BigDecimal("4")))))
+        assertEquals(indexed.getCount(EqFilter("price", BigDecimal("7"))), indexed.getCount(EqFilter("price", BigDecimal("7.00"))))
+        assertTrue(indexed.getCount(EqFilter("price", BigDecimal("7.00"))) > 0)
+    }
+
+    @Test
+    fun `LocalDate filters`() {
+        assertSameRows(op("date", base.plusDays(30), CompareOperator.lt))
+        assertSameRows(op("date", base.plusDays(700), CompareOperator.ge))
+        assertSameRows(op("date", base.plusDays(365), CompareOperator.le))
+        assertSameRows(EqFilter("date", base.plusDays(365)))
+        assertSameRows(EqFilter("date", base.minusDays(1)))
+    }
+
+    @Test
+    fun `And filters with several indexed properties`() {
+        assertSameRows(AndFilter(setOf(op("id", 1_000, CompareOperator.ge), op("id", 1_100, CompareOperator.lt))))
+        assertSameRows(AndFilter(setOf(op("amount", 900.0, CompareOperator.ge), op("date", base.plusDays(600), CompareOperator.gt))))
+        assertSameRows(AndFilter(setOf(EqFilter("quantity", 5), op("id", 2_000, CompareOperator.lt))))
+    }
+
+    @Test
+    fun `selective filters use the index`() {
+        assertTrue(indexed.explain(EqFilter("id", 1234)).contains("Lookup INDEX"))
+        assertTrue(indexed.explain(EqFilter("date", base.plusDays(365))).contains("Lookup INDEX"))
+        assertTrue(scan.explain(EqFilter("id", 1234)).contains("Scan all"))
+    }
+
+    private fun assertSameRows(filter: Filter<RowDTO>) {
+        val expected = scan.fetch(filter, sortById, 0L until rows.size).map { it.id }
+        val actual = indexed.fetch(filter, sortById, 0L until rows.size).map { it.id }
+
+        assertEquals(expected, actual, "Filter $filter")
+        assertEquals(expected, bitmapIndexed.fetch(filter, sortById, 0L until rows.size).map { it.id }, "Bitmap filter $filter")
+        assertEquals(expected.size.toLong(), indexed.getCount(filter), "Count of $filter")
+        assertEquals(rows.filter { matches(filter, it) }.map { it.id }, expected, "Scan of $filter")
+    }
+
+    /**
+     * Reference evaluation of the filters used in these tests
+     */
+    private fun matches(filter: Filter<RowDTO>, row: RowDTO): Boolean =
+        when (filter) {
+            is AndFilter<RowDTO> -> filter.children.all { matches(it, row) }
+            is OrFilter<RowDTO> -> filter.children.any { matches(it, row) }
+            is EqFilter<RowDTO> -> {
+                val value = value(row, filter.propertyName)
+
+                when {
+                    filter.value == null -> value == null
+                    value is BigDecimal -> BigDecimal(filter.value.toString()).compareTo(value) == 0
+                    else -> value == filter.value
+                }
+            }
+            is OpFilter<RowDTO> -> {
+                @Suppress("UNCHECKED_CAST")
+                val value = value(row, filter.propertyName) as Comparable<Any>?
+
+                value != null && FilterCompiler.matches(value.compareTo(filter.value), filter.operator)
+            }
+            else -> throw IllegalArgumentException("Unsupported filter $filter")
+        }
+
+    private fun value(row: RowDTO, propertyName: String): Any? = row.filterProperties()[propertyName]!!.get(row)
+
+    @Suppress("UNCHECKED_CAST")
+    private fun op(propertyName: String, value: Comparable<*>, operator: CompareOperator): Filter<RowDTO> =
+        OpFilter(propertyName, value as Comparable<Any>, operator)
+
+    private fun createRows(): List<RowDTO> {
+        val random = Random(7)
+
+        return (0 until 5_000).map { id ->
+            RowDTO(id,
+                   if (id % 17 == 0) null else Math.round(random.nextDouble() * 100_000) / 100.0,
+                   if (id % 23 == 0) null else base.plusDays(random.nextInt(730).toLong()),
+                   if (id % 11 == 0) null else random.nextInt(10),
+                   if (id % 13 == 0) null else BigDecimal.valueOf((id % 100).toLong(), 1).setScale(1 + id % 3))
+        }
+    }
+
+    companion object {
+        private val sortById = listOf(SortClause("id", true))
+    }
+}
@@ -0,0 +1,119 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  MutationTest.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import com.ailegorreta.commons.dtomappers.FilteredDTO
+import com.github.mvysny.vokdataloader.*
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import kotlin.reflect.KProperty1
+
+/**
+ * After add, update, remove and upsertAll the indexes and the cached filter results of
+ * the InMemoryService give the same rows as a new service initialized with the
+ * resulting data source, and an ItemChangeEvent is fired for each item.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class MutationTest {
+
+    data class RowDTO(val id: Int, val name: String, val amount: Int): FilteredDTO<RowDTO> {
+        override fun filterProperties(): HashMap<String, KProperty1<RowDTO, Any?>> =
+            hashMapOf("id" to RowDTO::id, "name" to RowDTO::name, "amount" to RowDTO::amount)
+    }
+
+    class RowService(private val indexed: Set<String>): InMemoryService<RowDTO>() {
+        override fun idOf(item: RowDTO): Any? = item.id
+
+        override fun indexedProperties() = indexed
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private val filters: List<Filter<RowDTO>> = listOf(
+        EqFilter<RowDTO>("amount", 7),
+        OpFilter<RowDTO>("amount", 90 as Comparable<Any>, CompareOperator.ge),
+        StartsWithFilter<RowDTO>("name", "N1%", false),
+        AndFilter<RowDTO>(setOf(StartsWithFilter<RowDTO>("name", "N2%", false),
+                                OpFilter<RowDTO>("amount", 50 as Comparable<Any>, CompareOperator.lt))))
+    private val rows = (0 until 2_000).map { RowDTO(it, "N$it", it % 100) }
+
+    @Test
+    fun `cached results and indexes after mutations`() {
+        val service = RowService(setOf("amount", "name")).also { it.initDataSource(rows) }
+        val current = LinkedHashMap(rows.associateBy { it.id })
+        val events = ArrayList<Pair<Int, ItemChangeType>>()
+
+        service.addItemChangeListener(object: ItemChangeListener<RowDTO> {
+            override fun itemChange(event: ItemChangeEvent<RowDTO>) {
+                events.add(Pair(event.item.id, event.type))
+            }
+        })
+        assertSameRows(service, current.values)             // the results are cached now
+
+        service.add(RowDTO(5_000, "N1x", 7))
+        current[5_000] = RowDTO(5_000, "N1x", 7)
+        service.update(RowDTO(17, "N17", 95))                   // it leaves EqFilter amount 7 and enters the range
+        current[17] = RowDTO(17, "N17", 95)
+        assertTrue(service.remove(rows[1]))                     // the last row takes its position
+        current.remove(1)
+        assertFalse(service.remove(RowDTO(9_999, "none", 0)))
+        assertSameRows(service, current.values)
+
+        val upserts = listOf(RowDTO(20, "N20", 10), RowDTO(6_000, "N2y", 10), RowDTO(5_000, "Z", 7))
+
+        service.upsertAll(upserts)
+        upserts.forEach { current[it.id] = it }
+        assertSameRows(service, current.values)
+
+        assertEquals(listOf(Pair(5_000, ItemChangeType.ADDED), Pair(17, ItemChangeType.UPDATED),
+                            Pair(1, ItemChangeType.REMOVED), Pair(20, ItemChangeType.UPDATED),
+                            Pair(6_000, ItemChangeType.ADDED), Pair(5_000, ItemChangeType.UPDATED)), events)
+    }
+
+    @Test
+    fun `invalid mutations are rejected`() {
+        val data = rows.take(10)
+        val service = RowService(setOf("amount")).also { it.initDataSource(data) }
+
+        assertThrows(IllegalArgumentException::class.java) { service.add(RowDTO(3, "N3", 3)) }
+        assertThrows(IllegalArgumentException::class.java) { service.update(RowDTO(100, "N100", 0)) }
+        assertThrows(IllegalArgumentException::class.java) { service.update(data[4]) }    // the same instance
+        assertEquals(data, service.fetch(null, emptyList(), 0L until 10L))
+        assertEquals(10, data.size)                             // the list received is never modified
+    }
+
+    private fun assertSameRows(service: RowService, expected: Collection<RowDTO>) {
+        val fresh = RowService(emptySet()).also { it.initDataSource(ArrayList(expected)) }
+        val byId = listOf(SortClause("id", true))
+
+        assertEquals(expected.size.toLong(), service.getCount(null))
+        filters.forEach { filter ->
+            val count = fresh.getCount(filter)
+
+            assertEquals(count, service.getCount(filter), "Count of $filter")
+            assertEquals(fresh.fetch(filter, byId, 0L until count), service.fetch(filter, byId, 0L until count), "Rows of $filter")
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  PartitionedInMemoryServiceTest.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import com.ailegorreta.commons.dtomappers.FilteredDTO
+import com.ailegorreta.commons.service.FilterChangeEvent
+import com.ailegorreta.commons.service.FilterChangeListener
+import com.github.mvysny.vokdataloader.*
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import kotlin.reflect.KProperty1
+
+/**
+ * The queries of a PartitionedInMemoryService only see the rows of the current
+ * partition, and the filter and item events are not sent to other sessions or
+ * partitions.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class PartitionedInMemoryServiceTest {
+
+    data class RowDTO(val id: Int, val company: String, val name: String): FilteredDTO<RowDTO> {
+        override fun filterProperties(): HashMap<String, KProperty1<RowDTO, Any?>> =
+            hashMapOf("id" to RowDTO::id, "company" to RowDTO::company, "name" to RowDTO::name)
+    }
+
+    class RowService: PartitionedInMemoryService<RowDTO, String>() {
+        var company = "A"
+
+        override fun partitionOf(item: RowDTO) = item.company
+
+        override fun currentPartition() = company
+
+        override fun newPartition(key: String) = object: InMemoryService<RowDTO>() {
+            override fun idOf(item: RowDTO): Any? = item.id
+        }
+    }
+
+    private val rows = (0 until 100).map { RowDTO(it, if (it % 2 == 0) "A" else "B", "N$it") }
+    private val service = RowService().also { it.initDataSource(rows) }
+    private val sortById = listOf(SortClause("id", true))
+
+    @Test
+    fun `queries see only the current partition`() {
+        assertEquals(50L, service.getCount(null))
+        assertTrue(service.fetch(null, sortById, 0L until 100L).all { it.company == "A" })
+        service.company = "B"
+        assertEquals(listOf(1, 3, 5), service.fetch(null, sortById, 0L until 3L).map { it.id })
+    }
+
+    @Test
+    fun `an item moved to another partition`() {
+        service.update(RowDTO(2, "B", "N2"))
+        assertEquals(49L, service.getCount(null))
+        service.company = "B"
+        assertEquals(51L, service.getCount(null))
+        assertEquals(1L, service.getCount(EqFilter("id", 2)))
+    }
+
+    @Test
+    fun `filter events only for the session`() {
+        val first = service.session()
+        val second = service.session()
+        val firstEvents = ArrayList<String>()
+        val secondEvents = ArrayList<String>()
+
+        first.addFilterChangeListener(listener(firstEvents))
+        second.addFilterChangeListener(listener(secondEvents))
+
+        first.getCount(StartsWithFilter("name", "N1%", false))
+        first.getCount(StartsWithFilter("name", "N1%", false))
+        assertEquals(1, firstEvents.size)
+        assertTrue(secondEvents.isEmpty())
+
+        second.getCount(StartsWithFilter("name", "N2%", false))
+        assertEquals(1, firstEvents.size)
+        assertEquals(1, secondEvents.size)
+    }
+
+    @Test
+    fun `item events of the partition until the registration is removed`() {
+        val events = ArrayList<ItemChangeEvent<RowDTO>>()
+        val registration = service.addItemChangeListener(object: ItemChangeListener<RowDTO> {
+            override fun itemChange(event: ItemChangeEvent<RowDTO>) { events.add(event) }
+        })
+
+        service.add(RowDTO(100, "A", "N100"))
+        service.add(RowDTO(101, "B", "N101"))
+        assertEquals(listOf(100), events.map { it.item.id })
+
+        registration.remove()
+        service.add(RowDTO(102, "A", "N102"))
+        assertEquals(1, events.size)
+    }
+
+    private fun listener(events: MutableList<String>) = object: FilterChangeListener {
+        override fun filterChange(event: FilterChangeEvent) { events.add(event.filter) }
+    }
+}
@@ -0,0 +1,145 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  RoaringBitmapTest.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.util.*
+
+/**
+ * RoaringBitmap against a TreeSet with the same positions: the transitions between
+ * array and bitmap containers and the and and or operations.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class RoaringBitmapTest {
+
+    @Test
+    fun `array container becomes a bitmap after 4096 values`() {
+        val bitmap = RoaringBitmap()
+        val expected = TreeSet<Int>()
+
+        for (x in 0..ARRAY_MAX * 2 step 2) {
+            bitmap.add(x)
+            expected.add(x)
+        }
+
+        assertContent(expected, bitmap)
+        assertFalse(1 in bitmap)
+        assertFalse(ARRAY_MAX * 2 + 2 in bitmap)
+    }
+
+    @Test
+    fun `bitmap container becomes an array when values are removed`() {
+        val bitmap = bitmapOf(IntArray(ARRAY_MAX + 1000) { it })
+        val expected = TreeSet((0 until ARRAY_MAX + 1000).toList())
+
+        for (x in 0 until ARRAY_MAX + 1000 step 3) {
+            bitmap.remove(x)
+            expected.remove(x)
+        }
+        assertContent(expected, bitmap)
+
+        for (x in 0 until ARRAY_MAX + 1000) {
+            bitmap.remove(x)
+            expected.remove(x)
+            if (x % 1000 == 0) assertContent(expected, bitmap)
+        }
+        assertEquals(0, bitmap.cardinality)
+
+        bitmap.add(7)
+        assertContent(TreeSet(listOf(7)), bitmap)
+    }
+
+    @Test
+    fun `values in several containers are kept in order`() {
+        val values = listOf(200_000, 5, 70_000, 65_535, 65_536, Int.MAX_VALUE)
+        val bitmap = RoaringBitmap()
+
+        values.forEach { bitmap.add(it) }
+        bitmap.add(5)
+
+        assertContent(TreeSet(values), bitmap)
+
+        bitmap.remove(70_000)
+        bitmap.remove(123)
+        assertContent(TreeSet(values - 70_000), bitmap)
+    }
+
+    @Test
+    fun `and and or match the set operations`() {
+        val random = Random(42)
+        val a = TreeSet<Int>()
+        val b = TreeSet<Int>()
+
+        repeat(20_000) { a.add(random.nextInt(1 shl 16)) }                  // dense container
+        repeat(30_000) { b.add(random.nextInt(1 shl 16)) }                  // dense container
+        repeat(200) { a.add((1 shl 16) + random.nextInt(1 shl 16)) }        // sparse containers
+        repeat(300) { b.add((1 shl 16) + random.nextInt(1 shl 16)) }
+        repeat(5_000) { a.add((2 shl 16) + random.nextInt(1 shl 16)) }      // only in a
+        repeat(100) { b.add((3 shl 16) + random.nextInt(1 shl 16)) }        // only in b
+        repeat(3_000) { a.add((4 shl 16) + random.nextInt(1 shl 16)) }      // dense and sparse
+        repeat(50) { b.add((4 shl 16) + random.nextInt(1 shl 16)) }
+
+        val bitmapA = bitmapOf(a.toIntArray())
+        val bitmapB = bitmapOf(b.toIntArray())
+
+        assertContent(TreeSet(a.filter { it in b }), bitmapA.and(bitmapB))
+        assertContent(TreeSet(a + b), bitmapA.or(bitmapB))
+        // the operands are not modified
+        assertContent(a, bitmapA)
+        assertContent(b, bitmapB)
+    }
+
+    @Test
+    fun `operations with empty bitmaps`() {
+        val bitmap = bitmapOf(intArrayOf(1, 2, 70_000))
+        val empty = RoaringBitmap()
+
+        assertEquals(0, bitmap.and(empty).cardinality)
+        assertArrayEquals(intArrayOf(1, 2, 70_000), bitmap.or(empty).toIntArray())
+        assertEquals(0, empty.and(bitmap).cardinality)
+        assertArrayEquals(intArrayOf(1, 2, 70_000), empty.or(bitmap).toIntArray())
+        assertArrayEquals(intArrayOf(1, 2, 70_000), bitmap.and(bitmap).toIntArray())
+    }
+
+    private fun bitmapOf(positions: IntArray): RoaringBitmap {
+        val res = RoaringBitmap()
+
+        positions.forEach { res.add(it) }
+
+        return res
+    }
+
+    private fun assertContent(expected: SortedSet<Int>, bitmap: RoaringBitmap) {
+        assertEquals(expected.size, bitmap.cardinality)
+        assertArrayEquals(expected.toIntArray(), bitmap.toIntArray())
+        expected.forEach { assertTrue(it in bitmap, "$it is missing") }
+    }
+
+    companion object {
+        private const val ARRAY_MAX = 4096
+    }
+}
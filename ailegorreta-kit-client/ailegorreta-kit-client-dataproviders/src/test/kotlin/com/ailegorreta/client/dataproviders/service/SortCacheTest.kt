@@ -0,0 +1,109 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  SortCacheTest.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.client.dataproviders.service
+
+import com.ailegorreta.commons.dtomappers.FilteredDTO
+import com.github.mvysny.vokdataloader.*
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import kotlin.reflect.KProperty1
+
+/**
+ * The sorted pages of the InMemoryService are the same as sorting the rows again
+ * after mutations of the data source and for filters refined from a cached result,
+ * i.e. a cached sort permutation is never applied to rows in another order.
+ *
+ *  @project : ailegorreta-kit-client-dataproviders
+ *  @author rlh
+ *  @date October 2023
+ */
+class SortCacheTest {
+
+    data class RowDTO(val id: Int, val name: String, val amount: Int): FilteredDTO<RowDTO> {
+        override fun filterProperties(): HashMap<String, KProperty1<RowDTO, Any?>> =
+            hashMapOf("id" to RowDTO::id, "name" to RowDTO::name, "amount" to RowDTO::amount)
+    }
+
+    class RowService: InMemoryService<RowDTO>() {
+        override fun idOf(item: RowDTO): Any? = item.id
+    }
+
+    private val rows = (0 until 1_000).map { RowDTO(it, "N$it", (it * 37) % 1_000) }
+    private val byAmount = listOf(SortClause("amount", true), SortClause("id", true))
+    private val broad = StartsWithFilter<RowDTO>("name", "N1%", false)
+    private val narrow = StartsWithFilter<RowDTO>("name", "N12%", false)
+
+    @Test
+    fun `sorted pages after mutations`() {
+        val service = RowService().also { it.initDataSource(rows) }
+        val current = LinkedHashMap(rows.associateBy { it.id })
+
+        assertSorted(service, current.values, null)
+        assertSorted(service, current.values, broad)
+
+        // the swap remove changes the positions of the rows of the data source and of the cached result
+        service.remove(rows[10])
+        current.remove(10)
+        assertSorted(service, current.values, null)
+        assertSorted(service, current.values, broad)
+
+        service.update(RowDTO(150, "N150", -1))
+        current[150] = RowDTO(150, "N150", -1)
+        assertSorted(service, current.values, null)
+        assertSorted(service, current.values, broad)
+
+        service.add(RowDTO(1_000, "N1000", 500))
+        current[1_000] = RowDTO(1_000, "N1000", 500)
+        assertSorted(service, current.values, null)
+        assertSorted(service, current.values, broad)
+    }
+
+    @Test
+    fun `sorted pages of a refined filter`() {
+        val service = RowService().also { it.initDataSource(rows) }
+
+        assertSorted(service, rows, broad)
+        assertSorted(service, rows, narrow)
+        assertSorted(service, rows, broad)
+    }
+
+    @Test
+    fun `top rows and scrolled pages are the same`() {
+        val service = RowService().also { it.initDataSource(rows) }
+        val expected = service.fetch(null, byAmount, 0L until rows.size.toLong())
+
+        assertEquals(expected.subList(0, 20), service.fetch(null, byAmount, 0L until 20L))
+        assertEquals(expected.subList(500, 520), service.fetch(null, byAmount, 500L until 520L))
+    }
+
+    private fun assertSorted(service: RowService, rows: Collection<RowDTO>, filter: StartsWithFilter<RowDTO>?) {
+        val prefix = filter?.value?.dropLast(1)
+        val expected = rows.filter { prefix == null || it.name.startsWith(prefix) }
+                           .sortedWith(compareBy<RowDTO> { it.amount }.thenBy { it.id })
+
+        assertEquals(expected, service.fetch(filter, byAmount, 0L until expected.size.toLong()), "Sorted by amount with $filter")
+        assertEquals(expected.reversed(),
+                     service.fetch(filter, byAmount.map { SortClause(it.propertyName, false) }, 0L until expected.size.toLong()),
+                     "Sorted descending with $filter")
+    }
+}
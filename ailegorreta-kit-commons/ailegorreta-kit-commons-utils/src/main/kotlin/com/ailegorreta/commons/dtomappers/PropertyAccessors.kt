@@ -0,0 +1,160 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  PropertyAccessors.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.ailegorreta.commons.dtomappers
+
+import java.lang.invoke.LambdaMetafactory
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.MethodType
+import java.lang.reflect.Method
+import java.util.concurrent.ConcurrentHashMap
+import java.util.function.Function
+import kotlin.reflect.KProperty1
+
+/**
+ * Reads one property of a DTO without going through Kotlin reflection.
+ *
+ * @author rlh
+ * @proyect ailegorreta-kit-commons-dtomappers
+ * @date October 2023
+ **/
+interface PropertyAccessor<T> {
+    val name: String
+
+    /**
+     * Declared type of the property. It is Object when the getter could not be
+     * resolved and the accessor delegates to the KProperty1.
+     */
+    val type: Class<*>
+
+    fun get(dto: T): Any?
+}
+
+/**
+ * Registry of the property accessors for the FilteredDTO classes. The accessors
+ * are built only once per DTO class from the filterProperties() declaration: for
+ * each property the Java getter is looked up and a Function is generated with
+ * LambdaMetafactory, so reading the property is a direct call to the getter and
+ * no reflection is done in the hot path.
+ *
+ * The getter is looked up by the name of the KProperty1 (the key in filterProperties()
+ * can be another name). The lambda is generated with a private lookup in the DTO class
+ * (so its class loader and module are used) and it is called once with the DTO that
+ * declares the properties. If the getter does not exist (e.g., a @JvmField), or the
+ * lambda cannot be generated, fails in that call or does not return the same value as
+ * the KProperty1, the accessor falls back to the KProperty1.get() call.
+ *
+ * @author rlh
+ * @proyect ailegorreta-kit-commons-dtomappers
+ * @date October 2023
+ **/
+object PropertyAccessors {
+
+    private val registry = ConcurrentHashMap<Class<*>, Map<String, PropertyAccessor<*>>>()
+
+    /**
+     * Returns the accessors for all the filterable properties of the DTO class.
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun <T : FilteredDTO<T>> of(dto: T): Map<String, PropertyAccessor<T>> =
+        registry.computeIfAbsent(dto.javaClass) { build(dto, it) } as Map<String, PropertyAccessor<T>>
+
+    /**
+     * Returns the accessor for one filterable property of the DTO class or null
+     * if it is not declared in filterProperties().
+     */
+    fun <T : FilteredDTO<T>> of(dto: T, propertyName: String): PropertyAccessor<T>? = of(dto)[propertyName]
+
+    /**
+     * Accessor that just delegates to the Kotlin property (no registry involved).
+     */
+    fun <T> fromProperty(prop: KProperty1<T, Any?>): PropertyAccessor<T> = KPropertyAccessor(prop)
+
+    /**
+     * Removes all the accessors (e.g., when a class loader is reloaded by the dev tools)
+     */
+    fun clear() = registry.clear()
+
+    private fun <T : FilteredDTO<T>> build(dto: T, clazz: Class<*>): Map<String, PropertyAccessor<*>> {
+        val accessors = HashMap<String, PropertyAccessor<*>>()
+
+        dto.filterProperties().forEach { (name, prop) ->
+            val getter = findGetter(clazz, prop.name)
+
+            accessors[name] = if (getter == null)
+                                  KPropertyAccessor(prop)
+                              else
+                                  try {
+                                      val function = generate(getter)
+
+                                      // fails here instead of in the first query, or reads another property
+                                      if (function.apply(dto) == prop.get(dto))
+                                          FunctionAccessor<T>(name, getter.returnType, function)
+                                      else
+                                          KPropertyAccessor(prop)
+                                  } catch (e: Throwable) {
+                                      KPropertyAccessor(prop)
+                                  }
+        }
+
+        return accessors
+    }
+
+    /**
+     * Kotlin naming convention for getters: 'getName' for 'name' and 'isActive' for 'isActive'
+     */
+    private fun findGetter(clazz: Class<*>, name: String): Method? {
+        val candidates = listOf("get" + name.replaceFirstChar { it.uppercase() }, name)
+
+        return clazz.methods.firstOrNull { it.parameterCount == 0 && it.name in candidates &&
+                                           it.returnType != Void.TYPE }
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun generate(getter: Method): Function<Any, Any?> {
+        val lookup = MethodHandles.privateLookupIn(getter.declaringClass, MethodHandles.lookup())
+        val handle = lookup.unreflect(getter)
+        val site = LambdaMetafactory.metafactory(lookup, "apply",
+                                                 MethodType.methodType(Function::class.java),
+                                                 MethodType.methodType(Any::class.java, Any::class.java),
+                                                 handle,
+                                                 handle.type().wrap())
+
+        return site.target.invokeWithArguments() as Function<Any, Any?>
+    }
+
+    private class FunctionAccessor<T>(override val name: String,
+                                      override val type: Class<*>,
+                                      private val function: Function<Any, Any?>) : PropertyAccessor<T> {
+        override fun get(dto: T): Any? = function.apply(dto as Any)
+    }
+
+    private class KPropertyAccessor<T>(private val prop: KProperty1<T, Any?>) : PropertyAccessor<T> {
+        override val name: String
+            get() = prop.name
+
+        override val type: Class<*>
+            get() = Any::class.java
+
+        override fun get(dto: T): Any? = prop.get(dto)
+    }
+}